@@ -20,12 +20,16 @@ import com.google.gwt.user.client.ui.SimplePanel;
 import com.google.gwt.user.client.ui.TextBox;
 import com.google.gwt.user.client.ui.VerticalPanel;
 import com.google.gwt.user.client.ui.Widget;
+import com.grapier.gwt.client.ui.dragdrop.ArrangeableBoard;
+import com.grapier.gwt.client.ui.dragdrop.ArrangeableList;
 import com.grapier.gwt.client.ui.dragdrop.ArrangeableTable;
 import com.grapier.gwt.client.ui.dragdrop.ConstrainedDragMoveListener;
 import com.grapier.gwt.client.ui.dragdrop.DragAwareWidget;
 import com.grapier.gwt.client.ui.dragdrop.DragDropListener;
 import com.grapier.gwt.client.ui.dragdrop.DragMoveListener;
 import com.grapier.gwt.client.ui.dragdrop.DragPositionMoveListener;
+import com.grapier.gwt.client.ui.dragdrop.FreeformBoard;
+import com.grapier.gwt.client.ui.dragdrop.SnapToGridMoveListener;
 import com.grapier.gwt.client.ui.dragdrop.ArrangeableTable.SqueezeStrategy;
 
 public class DragDrop implements EntryPoint {
@@ -38,6 +42,9 @@ public class DragDrop implements EntryPoint {
     RootPanel.get().add(createDragDropPanel());
     RootPanel.get().add(createConstrainedMovePanel());
     RootPanel.get().add(createArrangeablePanel());
+    RootPanel.get().add(createArrangeableListPanel());
+    RootPanel.get().add(createFreeformBoardPanel());
+    RootPanel.get().add(createArrangeableBoardPanel());
   }
   
   private Panel createImageDragPanel() {
@@ -138,6 +145,14 @@ public class DragDrop implements EntryPoint {
         numWidgets++;
       }
     });
+    final Button addBig = new Button("Add 2x2 widget");
+    addBig.addClickListener(new ClickListener() {
+      public void onClick(Widget sender) {
+        DragAwareWidget w = new DragAwareWidget(new HTML("Big " + numWidgets + "!!"));
+        table.addWidget(w, w, 2, 2);
+        numWidgets++;
+      }
+    });
     Button create = new Button("Create new table");
     create.addClickListener(new ClickListener() {
       public void onClick(Widget sender) {
@@ -156,6 +171,7 @@ public class DragDrop implements EntryPoint {
         table.setCellHeight("50px");
         table.setCellWidth("50px");
         table.setBorderWidth(1);
+        table.setDragThreshold(4);
         container.setWidget(table);
       }
     });
@@ -169,7 +185,11 @@ public class DragDrop implements EntryPoint {
     options.add(squeezeBox);
     options.add(create);
     panel.add(options);
-    panel.add(add);
+    HorizontalPanel adds = new HorizontalPanel();
+    adds.setSpacing(10);
+    adds.add(add);
+    adds.add(addBig);
+    panel.add(adds);
     panel.add(container);
     
     return panel;
@@ -187,6 +207,16 @@ public class DragDrop implements EntryPoint {
     DOM.setStyleAttribute(w.getElement(), "borderStyle", "solid");
     
     panel.add(w);
+    
+    DragAwareWidget snapped = new DragAwareWidget(new HTML("I move in steps of 25 pixels"));
+    snapped.addDragListener(new SnapToGridMoveListener(new ConstrainedDragMoveListener(snapped, panel), 25, 25));
+    snapped.setWidth("100px");
+    snapped.setHeight("50px");
+    DOM.setStyleAttribute(snapped.getElement(), "borderWidth", "2px");
+    DOM.setStyleAttribute(snapped.getElement(), "borderColor", "green");
+    DOM.setStyleAttribute(snapped.getElement(), "borderStyle", "solid");
+    panel.add(snapped, 150, 100);
+    
     panel.setWidth("300px");
     panel.setHeight("200px");
     DOM.setStyleAttribute(panel.getElement(), "borderWidth", "2px");
@@ -195,4 +225,69 @@ public class DragDrop implements EntryPoint {
     DOM.setStyleAttribute(panel.getElement(), "position", "relative");
     return panel;
   }
+
+  private Panel createArrangeableListPanel() {
+    VerticalPanel panel = new VerticalPanel();
+    panel.add(new HTML("<strong>Drag items up and down to reorder this list of 5000!</strong>"));
+
+    ArrangeableList list = new ArrangeableList(new ArrangeableList.RowRenderer() {
+      public Widget createRow(Object item) {
+        return new Label((String) item);
+      }
+    }, 20);
+    for (int i=0; i<5000; i++) {
+      list.addItem("Item " + (i + 1));
+    }
+    list.setWidth("200px");
+    list.setHeight("300px");
+    panel.add(list);
+    return panel;
+  }
+
+  private Panel createFreeformBoardPanel() {
+    VerticalPanel panel = new VerticalPanel();
+    panel.add(new HTML("<strong>Drag cards around this board!  They won't overlap; check 'Push' to shove other cards out of the way.</strong>"));
+
+    final FreeformBoard board = new FreeformBoard(60);
+    board.setSize("800px", "400px");
+    DOM.setStyleAttribute(board.getElement(), "border", "1px solid black");
+    for (int i=0; i<200; i++) {
+      Label card = new Label("Card " + (i + 1));
+      DOM.setStyleAttribute(card.getElement(), "border", "1px solid gray");
+      DOM.setStyleAttribute(card.getElement(), "background", "#ffffcc");
+      board.addWidget(card, (i % 20) * 40, (i / 20) * 40, 36, 36);
+    }
+
+    final CheckBox pushBox = new CheckBox("Push");
+    pushBox.addClickListener(new ClickListener() {
+      public void onClick(Widget sender) {
+        board.setCollisionPolicy(pushBox.isChecked()
+          ? FreeformBoard.CollisionPolicy.PUSH : FreeformBoard.CollisionPolicy.BLOCK);
+      }
+    });
+    panel.add(pushBox);
+    panel.add(board);
+    return panel;
+  }
+
+  private Panel createArrangeableBoardPanel() {
+    VerticalPanel panel = new VerticalPanel();
+    panel.add(new HTML("<strong>Rearrange these tiles, just like the table above, but without a table!</strong>"));
+
+    ArrangeableBoard board = new ArrangeableBoard(4, 10, 60, 40, true, false,
+        ArrangeableBoard.SqueezeStrategy.ONLY_VERTICAL);
+    DOM.setStyleAttribute(board.getElement(), "border", "1px solid black");
+    for (int i=0; i<30; i++) {
+      Label tile = new Label("Tile " + (i + 1));
+      DOM.setStyleAttribute(tile.getElement(), "border", "1px solid gray");
+      DOM.setStyleAttribute(tile.getElement(), "background", "#ccffcc");
+      if (i % 7 == 0) {
+        board.addWidget(tile, 2, 1);
+      } else {
+        board.addWidget(tile);
+      }
+    }
+    panel.add(board);
+    return panel;
+  }
 }
@@ -0,0 +1,523 @@
+package com.grapier.gwt.client;
+
+import java.util.Collections;
+import java.util.List;
+
+import com.google.gwt.core.client.EntryPoint;
+import com.google.gwt.user.client.Command;
+import com.google.gwt.user.client.DeferredCommand;
+import com.google.gwt.user.client.Timer;
+import com.google.gwt.user.client.ui.Button;
+import com.google.gwt.user.client.ui.CheckBox;
+import com.google.gwt.user.client.ui.ClickListener;
+import com.google.gwt.user.client.ui.HTML;
+import com.google.gwt.user.client.ui.HorizontalPanel;
+import com.google.gwt.user.client.ui.Label;
+import com.google.gwt.user.client.ui.ListBox;
+import com.google.gwt.user.client.ui.RootPanel;
+import com.google.gwt.user.client.ui.SimplePanel;
+import com.google.gwt.user.client.ui.TextBox;
+import com.google.gwt.user.client.ui.VerticalPanel;
+import com.google.gwt.user.client.ui.Widget;
+import com.grapier.gwt.client.ui.dragdrop.ArrangeableTable;
+import com.grapier.gwt.client.ui.dragdrop.DragAwareWidget;
+import com.grapier.gwt.client.ui.dragdrop.DragBehavior;
+import com.grapier.gwt.client.ui.dragdrop.DragDropListener;
+import com.grapier.gwt.client.ui.dragdrop.DropTargetRegistry;
+import com.grapier.gwt.client.util.DomUtils;
+
+/**
+ * A stress test for ArrangeableTable.  Builds a board of any size, with
+ * any options, and then drives scripted drags across it through
+ * their handles, one mouse move per frame, and reports:
+ *
+ * - frame times: the time between one mouse move and the next, which
+ *   includes the browser's layout and painting
+ * - the time spent handling each mouse move
+ * - hover latency: the time from the mouse entering a cell to the table
+ *   being laid out for it
+ * - the number of DOM changes, in browsers that can count them
+ *
+ * Drags are random, but from a seed, so the same settings always make
+ * the same board and the same drags.  Keep the mouse still while it runs.
+ *
+ * The leak check builds and destroys boards over and over with the same
+ * widgets, and checks that nothing still holds on to the old boards.
+ *
+ * @author chungwu
+ */
+public class DragDropStress implements EntryPoint {
+
+  private static final int FRAME_MILLIS = 16;
+
+  /**
+   * Drives the scripted drags; each run() is one frame
+   */
+  private class DragSession extends Timer {
+    private int drags;
+    private int dragsLeft;
+    private int steps;
+    private double startTime;
+    private double lastFrame;
+
+    // the drag in progress, of tile by handle, from (fromX, fromY) to
+    // (toX, toY), in client coordinates; null handle if there's none
+    private Widget tile;
+    private DragBehavior handle;
+    private int step;
+    private int fromX;
+    private int fromY;
+    private int toX;
+    private int toY;
+
+    // the time and page coordinates of each step of the drag in
+    // progress, and the last step a hover was reported for
+    private double[] stepTimes;
+    private int[] stepXs;
+    private int[] stepYs;
+    private int lastHoverStep;
+
+    /**
+     * @gwt.typeArgs <java.lang.Double>
+     */
+    private List frameTimes = DomUtils.newList();
+
+    /**
+     * @gwt.typeArgs <java.lang.Double>
+     */
+    private List moveTimes = DomUtils.newList();
+
+    /**
+     * @gwt.typeArgs <java.lang.Double>
+     */
+    private List hoverLatencies = DomUtils.newList();
+
+    private DragDropListener hoverListener;
+
+    public DragSession(int drags, int steps) {
+      this.drags = drags;
+      this.dragsLeft = drags;
+      this.steps = steps;
+      this.stepTimes = new double[steps + 1];
+      this.stepXs = new int[steps + 1];
+      this.stepYs = new int[steps + 1];
+
+      // told about hovers right after the table is
+      this.hoverListener = new DragDropListener(registry, new DragDropListener.WidgetHandler() {
+        public void handleHoverWidget(Widget target) {
+          hovered(target);
+        }
+        public void handleDropWidget(Widget target) {
+        }
+      });
+    }
+
+    public void start() {
+      DomUtils.countMutations(RootPanel.getBodyElement());
+      startTime = DomUtils.now();
+      scheduleRepeating(FRAME_MILLIS);
+    }
+
+    public void run() {
+      double now = DomUtils.now();
+      if (lastFrame > 0) {
+        frameTimes.add(new Double(now - lastFrame));
+      }
+      lastFrame = now;
+
+      if (handle == null) {
+        if (dragsLeft == 0) {
+          cancel();
+          finish();
+        } else {
+          startDrag();
+        }
+      } else if (step < steps) {
+        step++;
+        int x = fromX + (toX - fromX) * step / steps;
+        int y = fromY + (toY - fromY) * step / steps;
+        stepTimes[step] = now;
+        stepXs[step] = x + DomUtils.getScrollLeft();
+        stepYs[step] = y + DomUtils.getScrollTop();
+
+        handle.dragMove(x, y);
+        moveTimes.add(new Double(DomUtils.now() - now));
+      } else {
+        handle.dragEnd(toX, toY);
+        handle.removeDragListener(hoverListener);
+        handle = null;
+        tile = null;
+        dragsLeft--;
+      }
+    }
+
+    /**
+     * Picks a widget and a cell to drag it to, and starts dragging
+     */
+    private void startDrag() {
+      int index = nextInt(handles.size());
+      tile = (Widget) tiles.get(index);
+      handle = (DragBehavior) handles.get(index);
+      fromX = tile.getAbsoluteLeft() + tile.getOffsetWidth() / 2 - DomUtils.getScrollLeft();
+      fromY = tile.getAbsoluteTop() + tile.getOffsetHeight() / 2 - DomUtils.getScrollTop();
+
+      // cells are all the same size on a fixed layout; near enough otherwise
+      int row = nextInt(table.getRowCount());
+      int col = nextInt(table.getColumnCount());
+      toX = table.getAbsoluteLeft() + (2*col + 1) * table.getOffsetWidth() / (2*table.getColumnCount())
+          - DomUtils.getScrollLeft();
+      toY = table.getAbsoluteTop() + (2*row + 1) * table.getOffsetHeight() / (2*table.getRowCount())
+          - DomUtils.getScrollTop();
+
+      step = 0;
+      lastHoverStep = 0;
+      handle.addDragListener(hoverListener);
+      handle.dragStart(fromX, fromY);
+    }
+
+    /**
+     * Records the hover latency of a drag that's now hovering over
+     * target: from the first step since the last hover that was inside
+     * target, to now, or, with deferred layout, to when the layout is done
+     */
+    private void hovered(Widget target) {
+      if (target == null) {
+        return;
+      }
+
+      int left = target.getAbsoluteLeft();
+      int top = target.getAbsoluteTop();
+      int entered = step;
+      for (int i=lastHoverStep+1; i<step; i++) {
+        if (stepXs[i] >= left && stepXs[i] < left + target.getOffsetWidth()
+            && stepYs[i] >= top && stepYs[i] < top + target.getOffsetHeight()) {
+          entered = i;
+          break;
+        }
+      }
+      lastHoverStep = step;
+
+      final double enteredTime = stepTimes[entered];
+      if (deferredLayout) {
+        DeferredCommand.addCommand(new Command() {
+          public void execute() {
+            hoverLatencies.add(new Double(DomUtils.now() - enteredTime));
+          }
+        });
+      } else {
+        hoverLatencies.add(new Double(DomUtils.now() - enteredTime));
+      }
+    }
+
+    /**
+     * Reports, once everything the last drop deferred has run
+     */
+    private void finish() {
+      final double totalTime = DomUtils.now() - startTime;
+      DeferredCommand.addCommand(new Command() {
+        public void execute() {
+          new Timer() {
+            public void run() {
+              report(totalTime);
+            }
+          }.schedule(1);
+        }
+      });
+    }
+
+    private void report(double totalTime) {
+      int mutations = DomUtils.getMutationCount(RootPanel.getBodyElement());
+      StringBuffer buffer = new StringBuffer();
+      buffer.append(drags).append(" drags, ").append(moveTimes.size()).append(" moves in ")
+          .append(format(totalTime / 1000)).append("s\n");
+      buffer.append("frame time (ms):          ").append(percentiles(frameTimes)).append('\n');
+      buffer.append("move handling (ms):       ").append(percentiles(moveTimes)).append('\n');
+      buffer.append("hover latency (ms):       ").append(percentiles(hoverLatencies)).append('\n');
+      if (mutations < 0) {
+        buffer.append("DOM mutations:            not countable in this browser\n");
+      } else {
+        buffer.append("DOM mutations:            ").append(mutations).append(" total, ")
+            .append(format((double) mutations / drags)).append(" per drag\n");
+      }
+      log(buffer.toString());
+      runButton.setEnabled(true);
+    }
+  }
+
+  private TextBox rowsBox;
+  private TextBox colsBox;
+  private TextBox widgetsBox;
+  private TextBox bigBox;
+  private TextBox dragsBox;
+  private TextBox stepsBox;
+  private TextBox seedBox;
+  private CheckBox compactVerticalBox;
+  private CheckBox compactHorizontalBox;
+  private ListBox squeezeBox;
+  private CheckBox ghostBox;
+  private CheckBox deferredBox;
+  private CheckBox animatedBox;
+  private CheckBox fixedBox;
+  private CheckBox wrapperlessBox;
+  private TextBox budgetBox;
+  private Button runButton;
+  private HTML output;
+  private SimplePanel container;
+
+  private ArrangeableTable table;
+  private DropTargetRegistry registry;
+
+  /**
+   * @gwt.typeArgs <com.google.gwt.user.client.ui.Widget>
+   */
+  private List tiles;
+
+  /**
+   * @gwt.typeArgs <com.grapier.gwt.client.ui.dragdrop.DragBehavior>
+   */
+  private List handles;
+  private int seed;
+  private boolean deferredLayout;
+  private StringBuffer logBuffer = new StringBuffer();
+
+  public void onModuleLoad() {
+    VerticalPanel panel = new VerticalPanel();
+    panel.add(new HTML("<strong>Build a board, then run scripted drags across it.  Keep the mouse still while they run.</strong>"));
+
+    HorizontalPanel board = new HorizontalPanel();
+    board.setSpacing(5);
+    rowsBox = addNumberBox(board, "Rows:", "100");
+    colsBox = addNumberBox(board, "Cols:", "100");
+    widgetsBox = addNumberBox(board, "Widgets:", "5000");
+    bigBox = addNumberBox(board, "% 2x2:", "10");
+    seedBox = addNumberBox(board, "Seed:", "1");
+    panel.add(board);
+
+    HorizontalPanel options = new HorizontalPanel();
+    options.setSpacing(5);
+    compactVerticalBox = addCheckBox(options, "Compact Vertically", true);
+    compactHorizontalBox = addCheckBox(options, "Compact Horizontally", false);
+    squeezeBox = new ListBox();
+    squeezeBox.addItem("Swap");
+    squeezeBox.addItem("Vertically");
+    squeezeBox.addItem("Horizontally");
+    options.add(new Label("Squeeze Policy:"));
+    options.add(squeezeBox);
+    ghostBox = addCheckBox(options, "Ghost", false);
+    deferredBox = addCheckBox(options, "Deferred layout", false);
+    animatedBox = addCheckBox(options, "Animated", false);
+    fixedBox = addCheckBox(options, "Fixed layout", true);
+    wrapperlessBox = addCheckBox(options, "No wrappers", false);
+    budgetBox = addNumberBox(options, "Hover budget (ms):", "0");
+    panel.add(options);
+
+    HorizontalPanel run = new HorizontalPanel();
+    run.setSpacing(5);
+    dragsBox = addNumberBox(run, "Drags:", "50");
+    stepsBox = addNumberBox(run, "Moves per drag:", "60");
+    Button build = new Button("Build board");
+    build.addClickListener(new ClickListener() {
+      public void onClick(Widget sender) {
+        buildBoard();
+      }
+    });
+    runButton = new Button("Run drags");
+    runButton.setEnabled(false);
+    runButton.addClickListener(new ClickListener() {
+      public void onClick(Widget sender) {
+        runButton.setEnabled(false);
+        new DragSession(
+            Integer.parseInt(dragsBox.getText()),
+            Math.max(1, Integer.parseInt(stepsBox.getText()))).start();
+      }
+    });
+    Button leaks = new Button("Leak check");
+    leaks.addClickListener(new ClickListener() {
+      public void onClick(Widget sender) {
+        checkForLeaks();
+      }
+    });
+    run.add(build);
+    run.add(runButton);
+    run.add(leaks);
+    panel.add(run);
+
+    output = new HTML();
+    panel.add(output);
+    container = new SimplePanel();
+    panel.add(container);
+    RootPanel.get().add(panel);
+  }
+
+  /**
+   * Builds a new table with the current settings, filled with widgets
+   */
+  private void buildBoard() {
+    seed = Math.max(1, Integer.parseInt(seedBox.getText()));
+    int index = squeezeBox.getSelectedIndex();
+    ArrangeableTable.SqueezeStrategy strategy =
+      (index == 0) ? ArrangeableTable.SqueezeStrategy.SWAP :
+      (index == 1) ? ArrangeableTable.SqueezeStrategy.ONLY_VERTICAL :
+      ArrangeableTable.SqueezeStrategy.ONLY_HORIZONTAL;
+
+    double start = DomUtils.now();
+    container.clear();
+    table = new ArrangeableTable(
+        Integer.parseInt(rowsBox.getText()),
+        Integer.parseInt(colsBox.getText()),
+        compactVerticalBox.isChecked(),
+        compactHorizontalBox.isChecked(),
+        strategy);
+    table.setFixedLayout(fixedBox.isChecked());
+    table.setCellWidth("20px");
+    table.setCellHeight("20px");
+    table.setDragGhost(ghostBox.isChecked());
+    deferredLayout = deferredBox.isChecked();
+    table.setDeferredLayout(deferredLayout);
+    table.setAnimated(animatedBox.isChecked());
+    table.setHoverBudget(Integer.parseInt(budgetBox.getText()));
+    registry = new DropTargetRegistry();
+    table.setDropTargetRegistry(registry);
+
+    tiles = DomUtils.newList();
+    handles = DomUtils.newList();
+    int widgets = Integer.parseInt(widgetsBox.getText());
+    int bigPercent = Integer.parseInt(bigBox.getText());
+    boolean wrapperless = wrapperlessBox.isChecked();
+    for (int i=0; i<widgets; i++) {
+      Widget tile = new Label(String.valueOf(i));
+      DragBehavior handle;
+      if (wrapperless) {
+        handle = DragBehavior.attach(tile);
+      } else {
+        tile = new DragAwareWidget(tile);
+        handle = ((DragAwareWidget) tile).getDragBehavior();
+      }
+      if (nextInt(100) < bigPercent) {
+        table.addWidget(tile, handle, 2, 2);
+      } else {
+        table.addWidget(tile, handle);
+      }
+      tiles.add(tile);
+      handles.add(handle);
+    }
+    container.setWidget(table);
+
+    log("built " + table.getRowCount() + "x" + table.getColumnCount() + " board with "
+        + widgets + " widgets in " + format(DomUtils.now() - start) + "ms\n");
+    runButton.setEnabled(widgets > 0);
+  }
+
+  /**
+   * Builds and destroys boards over and over, putting the same handles in
+   * each, as a long-lived page would, and counts what the destroyed boards
+   * left behind: drag listeners still on the handles, and tables still in
+   * the shared registry
+   */
+  private void checkForLeaks() {
+    int boards = 20;
+    int widgets = 100;
+    DropTargetRegistry sharedRegistry = new DropTargetRegistry();
+    List leakHandles = DomUtils.newList();
+    for (int i=0; i<widgets; i++) {
+      leakHandles.add(new DragAwareWidget(new Label(String.valueOf(i))));
+    }
+
+    // the board built for the drags is thrown away
+    runButton.setEnabled(false);
+    
+    int leftListeners = 0;
+    int leftTables = 0;
+    double start = DomUtils.now();
+    for (int b=0; b<boards; b++) {
+      ArrangeableTable board = new ArrangeableTable(10, 10, 
+          compactVerticalBox.isChecked(), compactHorizontalBox.isChecked(), 
+          ArrangeableTable.SqueezeStrategy.SWAP);
+      board.setDropTargetRegistry(sharedRegistry);
+      container.setWidget(board);
+      for (int i=0; i<widgets; i++) {
+        DragAwareWidget handle = (DragAwareWidget) leakHandles.get(i);
+        board.addWidget(handle, handle);
+      }
+
+      for (int i=0; i<widgets; i++) {
+        board.remove((Widget) leakHandles.get(i));
+      }
+      container.clear();
+
+      for (int i=0; i<widgets; i++) {
+        leftListeners += ((DragAwareWidget) leakHandles.get(i)).getDragListenerCount();
+      }
+      if (sharedRegistry.containsTable(board)) {
+        leftTables++;
+      }
+    }
+
+    log("leak check: " + boards + " boards of " + widgets + " widgets in " 
+        + format(DomUtils.now() - start) + "ms; " 
+        + ((leftListeners == 0 && leftTables == 0) ? "no leaks" : 
+            "LEAKED " + leftListeners + " listeners and " + leftTables + " tables")
+        + "\n");
+  }
+
+  private TextBox addNumberBox(HorizontalPanel panel, String label, String value) {
+    TextBox box = new TextBox();
+    box.setText(value);
+    box.setWidth("40px");
+    panel.add(new Label(label));
+    panel.add(box);
+    return box;
+  }
+
+  private CheckBox addCheckBox(HorizontalPanel panel, String label, boolean checked) {
+    CheckBox box = new CheckBox(label);
+    box.setChecked(checked);
+    panel.add(box);
+    return box;
+  }
+
+  private void log(String message) {
+    logBuffer.append(message);
+    output.setHTML("<pre>" + logBuffer + "</pre>");
+  }
+
+  /**
+   * Returns a pseudo-random number from 0 (inclusive) to bound
+   * (exclusive), the same sequence for the same seed in any browser
+   */
+  private int nextInt(int bound) {
+    seed = (int) ((seed * 16807.0) % 2147483647.0);
+    return seed % bound;
+  }
+
+  /**
+   * Returns the 50th, 90th and 99th percentiles, and the maximum, of a
+   * list of Doubles
+   *
+   * @gwt.typeArgs values <java.lang.Double>
+   */
+  private static String percentiles(List values) {
+    if (values.isEmpty()) {
+      return "none";
+    }
+    Collections.sort(values);
+    return "p50 " + format(percentile(values, 50))
+        + "  p90 " + format(percentile(values, 90))
+        + "  p99 " + format(percentile(values, 99))
+        + "  max " + format(percentile(values, 100))
+        + "  (" + values.size() + ")";
+  }
+
+  private static double percentile(List sortedValues, int percent) {
+    int index = (sortedValues.size() - 1) * percent / 100;
+    return ((Double) sortedValues.get(index)).doubleValue();
+  }
+
+  /**
+   * Formats value with one decimal
+   */
+  private static String format(double value) {
+    long tenths = Math.round(value * 10);
+    return (tenths / 10) + "." + Math.abs(tenths % 10);
+  }
+}
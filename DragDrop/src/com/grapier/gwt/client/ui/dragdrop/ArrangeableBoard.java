@@ -0,0 +1,489 @@
+package com.grapier.gwt.client.ui.dragdrop;
+
+import java.util.List;
+import java.util.Map;
+
+import com.google.gwt.user.client.DOM;
+import com.google.gwt.user.client.Event;
+import com.google.gwt.user.client.ui.AbsolutePanel;
+import com.google.gwt.user.client.ui.SimplePanel;
+import com.google.gwt.user.client.ui.Widget;
+import com.grapier.gwt.client.ui.dragdrop.DragAwareWidget.DragListener;
+import com.grapier.gwt.client.ui.dragdrop.DragAwareWidget.DragScrollListener;
+import com.grapier.gwt.client.ui.dragdrop.TableArrangement.Span;
+import com.grapier.gwt.client.ui.dragdrop.TableArrangement.TableFullException;
+import com.grapier.gwt.client.util.DomUtils;
+import com.grapier.gwt.client.util.Position;
+
+/**
+ * A grid of cells whose widgets can be arranged by drag-and-drop, just
+ * like an ArrangeableTable, but drawn as tiles on an AbsolutePanel instead
+ * of as the cells of a table.  Each widget is put at the offset of its
+ * top-left cell, (col * cellWidth, row * cellHeight) pixels, and sized to
+ * the cells it spans.  Empty cells have no elements at all, and moving a
+ * widget only changes its left and top, so rearranging a big board never
+ * makes the browser lay out a table, and nothing on the board is ever
+ * measured.  Give the tiles a CSS transition on left and top to make them
+ * slide into place.
+ *
+ * Widgets are squeezed out of each other's way, compacted, and the board
+ * grown and shrunk, by the same rules as in an ArrangeableTable; the two
+ * share a TableArrangement, which keeps track of where everything is.  A
+ * dragged widget follows the mouse, and a shadow, styled
+ * "drop-target-highlighted", holds the cells it will be dropped into.
+ * With setMaxSize(), rearrangements that would grow the board past its
+ * maximum size are rejected.
+ *
+ * Each widget is dragged by a DragBehavior attached to it, or, if it's a
+ * DragAwareWidget, by that.
+ *
+ * @author chungwu
+ */
+public class ArrangeableBoard extends AbsolutePanel {
+
+  /**
+   * strategy interface for deciding what to do when a widget in one position
+   * is to replace another widget in a different position; see
+   * ArrangeableTable.SqueezeStrategy
+   */
+  public interface SqueezeStrategy {
+    /**
+     * @param oldPosition Position of the widget being moved from
+     * @param newPosition Position of the widget you want to move to; that Position
+     *   should already have an existing widget
+     * @return Position that the existing, "squeezed" widget should move to to
+     *   make way for this widget
+     */
+    public Position getSqueezedToPosition(ArrangeableBoard board, Position oldPosition, Position newPosition);
+
+    // always move the squeezed widget up if there's room, or down otherwise
+    public static final SqueezeStrategy ONLY_VERTICAL = new SqueezeStrategy() {
+      public Position getSqueezedToPosition(ArrangeableBoard board, Position oldPosition, Position newPosition) {
+        if (board.isRoomAbove(newPosition)) {
+          return newPosition.subtractRow();
+        } else {
+          return newPosition.addRow();
+        }
+      }
+    };
+
+    // always move the squeezed widget left if there's room, or right otherwise
+    public static final SqueezeStrategy ONLY_HORIZONTAL = new SqueezeStrategy() {
+      public Position getSqueezedToPosition(ArrangeableBoard board, Position oldPosition, Position newPosition) {
+        if (board.isRoomToLeft(newPosition)) {
+          return newPosition.subtractCol();
+        } else {
+          return newPosition.addCol();
+        }
+      }
+    };
+
+    // always swaps the squeezed widget with the moved widget
+    public static final SqueezeStrategy SWAP = new SqueezeStrategy() {
+      public Position getSqueezedToPosition(ArrangeableBoard board, Position oldPosition, Position newPosition) {
+        return oldPosition;
+      }
+    };
+  }
+
+  /**
+   * A widget on the board, and what drags it
+   */
+  private class Item implements DragListener, DragScrollListener {
+    private Widget widget;
+    private DragBehavior handle;
+    private boolean attachedHandle;
+
+    // where the widget was when the drag started, which moves with the
+    // page when it scrolls during a drag
+    private int originalLeft;
+    private int originalTop;
+
+    public void startDragging(int mouseX, int mouseY) {
+      startDraggingItem(this);
+    }
+
+    public void drag(int mouseX, int mouseY, int deltaX, int deltaY) {
+      if (draggedItem == this) {
+        dragItem(originalLeft + deltaX, originalTop + deltaY);
+      }
+    }
+
+    public void endDragging(int mouseX, int mouseY, int deltaX, int deltaY) {
+      if (draggedItem == this) {
+        dragItem(originalLeft + deltaX, originalTop + deltaY);
+        dropItem();
+      }
+    }
+
+    public void dragScrolled(int scrollDeltaX, int scrollDeltaY) {
+      originalLeft += scrollDeltaX;
+      originalTop += scrollDeltaY;
+    }
+  }
+
+  /**
+   * Shows the arrangement as tiles at the offsets of their cells.  A
+   * lifted tile stays where it is until it's placed again.
+   */
+  private class TileRenderer implements TableArrangement.Renderer {
+    public void widgetMoving(Widget widget, Position oldPosition) {
+    }
+
+    public void widgetLifted(Widget widget, Position position, int rowSpan, int colSpan) {
+    }
+
+    public void widgetPlaced(Widget widget, Position position, int rowSpan, int colSpan) {
+      int left = position.getCol() * cellWidth;
+      int top = position.getRow() * cellHeight;
+      if (widget.getParent() == ArrangeableBoard.this) {
+        setWidgetPosition(widget, left, top);
+      } else {
+        add(widget, left, top);
+      }
+    }
+
+    public void removeWidget(Widget widget) {
+      removeWithoutCompacting(widget);
+    }
+
+    public void resize(int rows, int cols) {
+      resizeBoard(rows, cols);
+    }
+
+    public Position getSqueezedToPosition(Position oldPosition, Position newPosition) {
+      return squeezeStrategy.getSqueezedToPosition(ArrangeableBoard.this, oldPosition, newPosition);
+    }
+
+    public boolean isCompactable(Widget widget) {
+      return widget != shadow;
+    }
+
+    public void overflow(Widget widget, Position oldPosition) {
+      throw new TableFullException(oldPosition);
+    }
+  }
+
+  private TableArrangement arrangement;
+  private SqueezeStrategy squeezeStrategy;
+  private int cellWidth;
+  private int cellHeight;
+
+  /**
+   * @gwt.typeArgs <com.google.gwt.user.client.ui.Widget,com.grapier.gwt.client.ui.dragdrop.ArrangeableBoard.Item>
+   */
+  private Map items;
+
+  // the drag in progress, and the shadow holding the cells it will be
+  // dropped into; null draggedItem if there's none
+  private Item draggedItem;
+  private SimplePanel shadow;
+
+  /**
+   * Constructs an ArrangeableBoard
+   *
+   * @param minRows minimum number of rows this board will always at least have
+   * @param minCols minimum number of columns this board will always at least have
+   * @param cellWidth the width, in pixels, of each cell
+   * @param cellHeight the height, in pixels, of each cell
+   * @param compactVertically if true, there will never be empty cells above widgets
+   * @param compactHorizontally if true, there will never be empty cells to the left
+   *   of widgets
+   * @param strategy a SqueezeStrategy; when you drag an widget to an existing
+   *   widget, the strategy is used to determine where to "squeeze" the existing
+   *   widget to.
+   */
+  public ArrangeableBoard(int minRows, int minCols, int cellWidth, int cellHeight,
+      boolean compactVertically, boolean compactHorizontally, SqueezeStrategy strategy) {
+    this.cellWidth = cellWidth;
+    this.cellHeight = cellHeight;
+    this.squeezeStrategy = strategy;
+    this.items = DomUtils.newMap();
+    this.arrangement = new TableArrangement(
+        new TileRenderer(), minRows, minCols, compactVertically, compactHorizontally);
+
+    shadow = new SimplePanel();
+    shadow.setStyleName("drop-target-highlighted");
+    resizeBoard(minRows, minCols);
+    sinkEvents(Event.ONMOUSEDOWN);
+  }
+
+  /**
+   * Passes mouse downs on to the DragBehaviors attached to the widgets
+   * in here, which the event preview misses while a popup is showing
+   */
+  public void onBrowserEvent(Event event) {
+    super.onBrowserEvent(event);
+    if (DOM.eventGetType(event) == Event.ONMOUSEDOWN) {
+      DragBehavior.pressAttached(event);
+    }
+  }
+
+  public int getRowCount() {
+    return arrangement.getRowCount();
+  }
+
+  public int getColumnCount() {
+    return arrangement.getColumnCount();
+  }
+
+  /**
+   * Returns the Position of the argument widget; null if the widget
+   * cannot be found on the board
+   */
+  public Position findWidget(Widget widget) {
+    return arrangement.findWidget(widget);
+  }
+
+  /**
+   * Returns the number of rows the argument widget spans
+   */
+  public int getRowSpan(Widget widget) {
+    return arrangement.getSpan(widget).rows;
+  }
+
+  /**
+   * Returns the number of columns the argument widget spans
+   */
+  public int getColSpan(Widget widget) {
+    return arrangement.getSpan(widget).cols;
+  }
+
+  /**
+   * Returns the Position of the earliest place, iterating row by row,
+   * column by column, where a widget spanning rowSpan rows and colSpan
+   * columns would fit without overlapping anything.
+   */
+  public Position findFreePosition(int rowSpan, int colSpan) {
+    return arrangement.findFreePosition(rowSpan, colSpan);
+  }
+
+  /**
+   * Sets the style of the shadow of the widget being dragged
+   */
+  public void setShadowStyleName(String styleName) {
+    shadow.setStyleName(styleName);
+  }
+
+  /**
+   * Sets the most rows and columns the board may grow to as widgets are
+   * squeezed out of the way; 0 means no limit, the default.  A
+   * rearrangement that would grow it past them is rejected, and the
+   * shadow stays where it was.
+   */
+  public void setMaxSize(int maxRows, int maxCols) {
+    arrangement.setMaxSize(maxRows, maxCols);
+  }
+
+  /**
+   * Adds a draggable widget to the next empty cell
+   */
+  public void addWidget(Widget widget) {
+    addWidget(widget, 1, 1);
+  }
+
+  /**
+   * Adds a draggable widget spanning rowSpan rows and colSpan columns to
+   * the first place it fits.  Throws an IndexOutOfBoundsException if it
+   * doesn't fit within the maximum size of the board.
+   */
+  public void addWidget(Widget widget, int rowSpan, int colSpan) {
+    Position position = arrangement.findFreePositionWithinMaximum(new Span(rowSpan, colSpan));
+    if (position == null) {
+      throw new TableFullException(findFreePosition(rowSpan, colSpan));
+    }
+    setWidget(widget, position, rowSpan, colSpan);
+  }
+
+  /**
+   * Puts a draggable widget at the specified position.  If it's already
+   * on the board, it keeps its span; widgets overlapping it are taken off
+   * the board.
+   */
+  public void setWidget(Widget widget, Position position) {
+    Span span = arrangement.getSpan(widget);
+    setWidget(widget, position, span.rows, span.cols);
+  }
+
+  /**
+   * Puts a draggable widget spanning rowSpan rows and colSpan columns,
+   * with its top-left cell at the specified position.  Widgets overlapping
+   * it are taken off the board.
+   */
+  public void setWidget(Widget widget, Position position, int rowSpan, int colSpan) {
+    if (!items.containsKey(widget)) {
+      addItem(widget);
+    }
+    arrangement.setSpan(widget, rowSpan, colSpan);
+    widget.setWidth((colSpan * cellWidth) + "px");
+    widget.setHeight((rowSpan * cellHeight) + "px");
+    arrangement.setWidget(widget, position);
+  }
+
+  /**
+   * Takes a widget off the board, stops it being dragged, and compacts the
+   * board if you've set compactHorizontally or compactVertically to be true
+   */
+  public boolean remove(Widget widget) {
+    if (!items.containsKey(widget)) {
+      return super.remove(widget);
+    }
+
+    if (draggedItem != null && draggedItem.widget == widget) {
+      // the drag goes on, but nothing comes of it
+      removeShadow();
+      draggedItem = null;
+    }
+    boolean rc = removeWithoutCompacting(widget);
+    arrangement.compactWidgets();
+    arrangement.removeEmptyRowsAndColumnsFromFringes();
+    return rc;
+  }
+
+  /**
+   * Takes all the widgets off the board
+   */
+  public void clear() {
+    if (draggedItem != null) {
+      removeShadow();
+      draggedItem = null;
+    }
+
+    List widgets = DomUtils.newList();
+    widgets.addAll(items.keySet());
+    for (int i=0; i<widgets.size(); i++) {
+      removeWithoutCompacting((Widget) widgets.get(i));
+    }
+    super.clear();
+    arrangement.removeEmptyRowsAndColumnsFromFringes();
+  }
+
+  /**
+   * Takes a widget off the board, and takes the board's listener off its
+   * handle, without compacting
+   */
+  private boolean removeWithoutCompacting(Widget widget) {
+    Item item = (Item) items.remove(widget);
+    if (item != null) {
+      item.handle.removeDragListener(item);
+      if (item.attachedHandle) {
+        item.handle.detach();
+      }
+    }
+    arrangement.removeWidget(widget);
+    arrangement.forgetWidget(widget);
+    return super.remove(widget);
+  }
+
+  /**
+   * Returns true if there's an empty cell in the same column in a
+   * row above position
+   */
+  private boolean isRoomAbove(Position position) {
+    return arrangement.isRoomAbove(position);
+  }
+
+  /**
+   * Returns true if there's an empty cell in the same row in a column
+   * to the left of position
+   */
+  private boolean isRoomToLeft(Position position) {
+    return arrangement.isRoomToLeft(position);
+  }
+
+  private void addItem(Widget widget) {
+    Item item = new Item();
+    item.widget = widget;
+    if (widget instanceof DragAwareWidget) {
+      item.handle = ((DragAwareWidget) widget).getDragBehavior();
+    } else {
+      item.handle = DragBehavior.attach(widget);
+      item.attachedHandle = true;
+    }
+    item.handle.addDragListener(item);
+    items.put(widget, item);
+  }
+
+  /**
+   * Gives the board rows rows and cols columns
+   */
+  private void resizeBoard(int rows, int cols) {
+    arrangement.setSize(rows, cols);
+    setWidth((cols * cellWidth) + "px");
+    setHeight((rows * cellHeight) + "px");
+  }
+
+  /**
+   * Lifts the widget of item out of its cells, to follow the mouse, and
+   * puts the shadow there instead
+   */
+  private void startDraggingItem(Item item) {
+    if (draggedItem != null) {
+      dropItem();
+    }
+    Position position = findWidget(item.widget);
+    if (position == null) {
+      return;
+    }
+
+    draggedItem = item;
+    item.originalLeft = position.getCol() * cellWidth;
+    item.originalTop = position.getRow() * cellHeight;
+    DOM.setStyleAttribute(item.widget.getElement(), "zIndex", "1");
+
+    Span span = arrangement.getSpan(item.widget);
+    arrangement.liftWidget(item.widget);
+    arrangement.setSpan(shadow, span.rows, span.cols);
+    shadow.setWidth((span.cols * cellWidth) + "px");
+    shadow.setHeight((span.rows * cellHeight) + "px");
+    arrangement.setWidget(shadow, position);
+  }
+
+  /**
+   * Moves the dragged widget to (left, top), and the shadow to the cell
+   * nearest there, squeezing away whatever is in the way
+   */
+  private void dragItem(int left, int top) {
+    left = Math.max(0, left);
+    top = Math.max(0, top);
+    setWidgetPosition(draggedItem.widget, left, top);
+
+    int row = Math.min((top + cellHeight / 2) / cellHeight, getRowCount() - 1);
+    int col = Math.min((left + cellWidth / 2) / cellWidth, getColumnCount() - 1);
+    Position oldPosition = findWidget(shadow);
+    if (oldPosition.getRow() == row && oldPosition.getCol() == col) {
+      return;
+    }
+
+    arrangement.beginUndoable();
+    try {
+      arrangement.moveWidget(shadow, oldPosition, new Position(row, col));
+    } catch (TableFullException e) {
+      arrangement.undo();
+      return;
+    }
+    arrangement.endUndoable();
+    arrangement.compactWidgets();
+  }
+
+  /**
+   * Puts the dragged widget where its shadow is
+   */
+  private void dropItem() {
+    Widget widget = draggedItem.widget;
+    draggedItem = null;
+
+    Position position = findWidget(shadow);
+    removeShadow();
+    DOM.setStyleAttribute(widget.getElement(), "zIndex", "");
+    arrangement.setWidget(widget, position);
+    arrangement.compactWidgets();
+    arrangement.removeEmptyRowsAndColumnsFromFringes();
+  }
+
+  private void removeShadow() {
+    arrangement.removeWidget(shadow);
+    arrangement.forgetWidget(shadow);
+    super.remove(shadow);
+  }
+}
@@ -0,0 +1,498 @@
+package com.grapier.gwt.client.ui.dragdrop;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gwt.user.client.Command;
+import com.google.gwt.user.client.DOM;
+import com.google.gwt.user.client.DeferredCommand;
+import com.google.gwt.user.client.Event;
+import com.google.gwt.user.client.ui.AbsolutePanel;
+import com.google.gwt.user.client.ui.Composite;
+import com.google.gwt.user.client.ui.ScrollListener;
+import com.google.gwt.user.client.ui.ScrollPanel;
+import com.google.gwt.user.client.ui.SimplePanel;
+import com.google.gwt.user.client.ui.Widget;
+import com.grapier.gwt.client.util.DomUtils;
+
+/**
+ * A long list whose items can be put in a different order by dragging
+ * them up and down.  Only the rows visible in the list, and a few around
+ * them, are created, by a RowRenderer, so a list of thousands of items
+ * costs about as much as the few dozen on screen.
+ *
+ * Every row has a height in pixels: the rowHeight the list was created
+ * with, unless set otherwise with setRowHeight().  The list keeps the
+ * running total of the heights, so it can tell which item is at any
+ * offset with a binary search, without measuring anything.  While a row
+ * is dragged, it follows the mouse, and a single insertion marker shows
+ * where it would be dropped; no other row moves until the drop.
+ *
+ * Items may be any objects, as long as no two are equal.  Give the list a
+ * height with setHeight(); it scrolls within that height.  Style the
+ * dragged row with the "arrangeable-list-dragged" style name, and the
+ * insertion marker with "arrangeable-list-marker".
+ *
+ * @author chungwu
+ */
+public class ArrangeableList extends Composite {
+
+  /**
+   * Creates the rows of an ArrangeableList.  A row is dragged by a
+   * DragBehavior attached to it, or, if it's a DragAwareWidget, by that.
+   */
+  public interface RowRenderer {
+    /**
+     * Returns a new widget showing item
+     */
+    public Widget createRow(Object item);
+  }
+
+  /**
+   * Listens for items being dragged to a new place in an ArrangeableList
+   */
+  public interface ReorderListener {
+    /**
+     * The item that was at oldIndex is now at newIndex
+     */
+    public void itemMoved(ArrangeableList sender, Object item, int oldIndex, int newIndex);
+  }
+
+  // how many rows are created past each edge of the visible ones, so
+  // that scrolling a little doesn't show empty space
+  private static final int OVERSCAN = 3;
+
+  private RowRenderer renderer;
+  private int rowHeight;
+  private ScrollPanel viewport;
+  private AbsolutePanel content;
+  private SimplePanel marker;
+  private int scrollTop;
+
+  /**
+   * @gwt.typeArgs <java.lang.Object>
+   */
+  private List items;
+
+  // the height of each item, and the offset of the top of each item from
+  // the top of the list, plus the total height at the end.  The offsets
+  // are only added up again when they're needed after a change.
+  private int[] heights;
+  private int[] tops;
+  private boolean topsValid;
+
+  // the rows created for the items near the visible part of the list,
+  // and their handles; rowsMoved if they have to be put in place again
+  private Map rowsByItem;
+  private Map handlesByItem;
+  private boolean rowsMoved;
+  private boolean renderScheduled;
+
+  /**
+   * @gwt.typeArgs <com.grapier.gwt.client.ui.dragdrop.ArrangeableList.ReorderListener>
+   */
+  private List reorderListeners;
+
+  // the drag in progress: the item dragged, where it was, where the
+  // list was scrolled to and the row was when the drag started, and how
+  // far down the row the mouse is; null draggedItem if there's none
+  private Object draggedItem;
+  private int draggedIndex;
+  private int dragStartScrollTop;
+  private int dragStartTop;
+  private int dragPointerOffset;
+  private int lastDeltaY;
+  private int insertionIndex;
+
+  /**
+   * @param renderer creates the rows
+   * @param rowHeight the height, in pixels, of each row, unless set
+   *   otherwise with setRowHeight()
+   */
+  public ArrangeableList(RowRenderer renderer, int rowHeight) {
+    this.renderer = renderer;
+    this.rowHeight = rowHeight;
+    this.items = DomUtils.newList();
+    this.heights = new int[16];
+    this.tops = new int[17];
+    this.rowsByItem = DomUtils.newMap();
+    this.handlesByItem = DomUtils.newMap();
+    this.reorderListeners = DomUtils.newList();
+
+    content = new AbsolutePanel();
+    content.setWidth("100%");
+    marker = new SimplePanel();
+    marker.setStyleName("arrangeable-list-marker");
+    marker.setWidth("100%");
+    marker.setVisible(false);
+    content.add(marker, 0, 0);
+
+    viewport = new ScrollPanel(content);
+    viewport.addScrollListener(new ScrollListener() {
+      public void onScroll(Widget widget, int scrollLeft, int scrollTop) {
+        scrolled(scrollTop);
+      }
+    });
+    initWidget(viewport);
+    setStyleName("arrangeable-list");
+    sinkEvents(Event.ONMOUSEDOWN);
+  }
+
+  /**
+   * Passes mouse downs on to the DragBehaviors attached to the widgets
+   * in here, which the event preview misses while a popup is showing
+   */
+  public void onBrowserEvent(Event event) {
+    super.onBrowserEvent(event);
+    if (DOM.eventGetType(event) == Event.ONMOUSEDOWN) {
+      DragBehavior.pressAttached(event);
+    }
+  }
+
+  public int getItemCount() {
+    return items.size();
+  }
+
+  public Object getItem(int index) {
+    return items.get(index);
+  }
+
+  /**
+   * Returns the index of the argument item; -1 if it isn't in the list
+   */
+  public int indexOf(Object item) {
+    return items.indexOf(item);
+  }
+
+  /**
+   * Adds an item to the end of the list
+   */
+  public void addItem(Object item) {
+    insertItem(item, items.size());
+  }
+
+  /**
+   * Inserts an item into the list, before the item at index
+   */
+  public void insertItem(Object item, int index) {
+    int count = items.size();
+    if (count == heights.length) {
+      int[] newHeights = new int[count * 2];
+      System.arraycopy(heights, 0, newHeights, 0, count);
+      heights = newHeights;
+      tops = new int[count * 2 + 1];
+    }
+    System.arraycopy(heights, index, heights, index + 1, count - index);
+    heights[index] = rowHeight;
+    items.add(index, item);
+    if (draggedItem != null && index <= draggedIndex) {
+      draggedIndex++;
+    }
+
+    topsValid = false;
+    scheduleRender();
+  }
+
+  /**
+   * Removes the item at index from the list, and returns it
+   */
+  public Object removeItem(int index) {
+    int count = items.size();
+    Object item = items.remove(index);
+    System.arraycopy(heights, index + 1, heights, index, count - index - 1);
+    if (item == draggedItem) {
+      // the drag goes on, but nothing comes of it
+      draggedItem = null;
+      marker.setVisible(false);
+    } else if (draggedItem != null && index < draggedIndex) {
+      draggedIndex--;
+    }
+    discardRow(item);
+
+    topsValid = false;
+    scheduleRender();
+    return item;
+  }
+
+  /**
+   * Sets the height, in pixels, of the row of the item at index
+   */
+  public void setRowHeight(int index, int height) {
+    if (heights[index] != height) {
+      heights[index] = height;
+      topsValid = false;
+      scheduleRender();
+    }
+  }
+
+  public int getRowHeight(int index) {
+    return heights[index];
+  }
+
+  public void addReorderListener(ReorderListener listener) {
+    reorderListeners.add(listener);
+  }
+
+  public void removeReorderListener(ReorderListener listener) {
+    reorderListeners.remove(listener);
+  }
+
+  /**
+   * Returns the index of the item whose row is at offset y from the top
+   * of the list
+   */
+  public int getIndexAt(int y) {
+    validateTops();
+    int low = 0;
+    int high = items.size() - 1;
+    while (low < high) {
+      int mid = (low + high + 1) / 2;
+      if (tops[mid] <= y) {
+        low = mid;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return Math.max(low, 0);
+  }
+
+  /**
+   * Returns the index at which an item dropped at offset y from the top
+   * of the list would be inserted: before the first item whose middle is
+   * below y, or at the end
+   */
+  public int getInsertionIndex(int y) {
+    validateTops();
+    int low = 0;
+    int high = items.size();
+    while (low < high) {
+      int mid = (low + high) / 2;
+      if (tops[mid] + heights[mid] / 2 < y) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Creates the rows that have come into view, and throws away the ones
+   * that have gone out of it.  This is done for you when the list is
+   * attached, scrolled or changed.
+   */
+  public void renderVisibleRows() {
+    renderScheduled = false;
+    validateTops();
+
+    Map rows = DomUtils.newMap();
+    int count = items.size();
+    if (count > 0) {
+      int first = Math.max(0, getIndexAt(scrollTop) - OVERSCAN);
+      int last = Math.min(count - 1, getIndexAt(scrollTop + viewport.getOffsetHeight()) + OVERSCAN);
+      for (int i=first; i<=last; i++) {
+        Object item = items.get(i);
+        Widget row = (Widget) rowsByItem.remove(item);
+        boolean created = (row == null);
+        if (created) {
+          row = createRow(item);
+        }
+        if ((created || rowsMoved) && item != draggedItem) {
+          content.setWidgetPosition(row, 0, tops[i]);
+          row.setHeight(heights[i] + "px");
+        }
+        rows.put(item, row);
+      }
+    }
+
+    // the row being dragged stays, even if it's out of view
+    for (Iterator iter = rowsByItem.keySet().iterator(); iter.hasNext(); ) {
+      Object item = iter.next();
+      if (item == draggedItem) {
+        rows.put(item, rowsByItem.get(item));
+      } else {
+        Widget row = (Widget) rowsByItem.get(item);
+        content.remove(row);
+        ((DragBehavior) handlesByItem.remove(item)).detach();
+      }
+    }
+    rowsByItem = rows;
+    rowsMoved = false;
+  }
+
+  protected void onLoad() {
+    renderVisibleRows();
+  }
+
+  /**
+   * Renders the rows once whatever we're doing now is finished, so that
+   * a run of changes is only rendered once
+   */
+  private void scheduleRender() {
+    if (renderScheduled || !isAttached()) {
+      return;
+    }
+    renderScheduled = true;
+    DeferredCommand.addCommand(new Command() {
+      public void execute() {
+        if (renderScheduled) {
+          renderVisibleRows();
+        }
+      }
+    });
+  }
+
+  /**
+   * Adds up the heights into tops again, if they have changed
+   */
+  private void validateTops() {
+    if (topsValid) {
+      return;
+    }
+
+    int count = items.size();
+    int top = 0;
+    for (int i=0; i<count; i++) {
+      tops[i] = top;
+      top += heights[i];
+    }
+    tops[count] = top;
+    content.setHeight(top + "px");
+    topsValid = true;
+    rowsMoved = true;
+  }
+
+  /**
+   * Creates the row of an item, and makes it draggable
+   */
+  private Widget createRow(final Object item) {
+    Widget row = renderer.createRow(item);
+    DragBehavior handle = (row instanceof DragAwareWidget)
+      ? ((DragAwareWidget) row).getDragBehavior() : DragBehavior.attach(row);
+    handle.addDragListener(new DragAwareWidget.DragListener() {
+      public void startDragging(int mouseX, int mouseY) {
+        startDraggingItem(item, mouseY);
+      }
+      public void drag(int mouseX, int mouseY, int deltaX, int deltaY) {
+        if (draggedItem == item) {
+          dragItem(deltaY);
+        }
+      }
+      public void endDragging(int mouseX, int mouseY, int deltaX, int deltaY) {
+        if (draggedItem == item) {
+          dragItem(deltaY);
+          dropItem();
+        }
+      }
+    });
+
+    row.setWidth("100%");
+    content.add(row, 0, 0);
+    handlesByItem.put(item, handle);
+    return row;
+  }
+
+  /**
+   * Throws away the row of an item, if it has one
+   */
+  private void discardRow(Object item) {
+    Widget row = (Widget) rowsByItem.remove(item);
+    if (row != null) {
+      content.remove(row);
+      ((DragBehavior) handlesByItem.remove(item)).detach();
+    }
+  }
+
+  private void scrolled(int scrollTop) {
+    this.scrollTop = scrollTop;
+    renderVisibleRows();
+
+    // the list has moved under the mouse
+    if (draggedItem != null) {
+      dragItem(lastDeltaY);
+    }
+  }
+
+  /**
+   * Lifts the row of item out of the list, to follow the mouse at
+   * mouseY
+   */
+  private void startDraggingItem(Object item, int mouseY) {
+    validateTops();
+    Widget row = (Widget) rowsByItem.get(item);
+    draggedItem = item;
+    draggedIndex = items.indexOf(item);
+    dragStartScrollTop = scrollTop;
+    dragStartTop = tops[draggedIndex];
+    dragPointerOffset = mouseY - (row.getAbsoluteTop() - DomUtils.getScrollTop());
+    lastDeltaY = 0;
+    insertionIndex = draggedIndex;
+
+    row.addStyleName("arrangeable-list-dragged");
+    content.setWidgetPosition(marker, 0, getMarkerTop(insertionIndex));
+    marker.setVisible(true);
+  }
+
+  /**
+   * Moves the dragged row deltaY pixels from where it started, and the
+   * insertion marker to where it would be dropped
+   */
+  private void dragItem(int deltaY) {
+    lastDeltaY = deltaY;
+    int maxTop = tops[items.size()] - heights[draggedIndex];
+    int top = dragStartTop + deltaY + (scrollTop - dragStartScrollTop);
+    top = Math.max(0, Math.min(top, maxTop));
+    content.setWidgetPosition((Widget) rowsByItem.get(draggedItem), 0, top);
+
+    int index = getInsertionIndex(top + dragPointerOffset);
+    if (index != insertionIndex) {
+      insertionIndex = index;
+      content.setWidgetPosition(marker, 0, getMarkerTop(index));
+    }
+  }
+
+  /**
+   * Moves the dragged item to where the insertion marker is
+   */
+  private void dropItem() {
+    Object item = draggedItem;
+    Widget row = (Widget) rowsByItem.get(item);
+    row.removeStyleName("arrangeable-list-dragged");
+    marker.setVisible(false);
+    draggedItem = null;
+
+    int oldIndex = draggedIndex;
+    int newIndex = (insertionIndex > oldIndex) ? insertionIndex - 1 : insertionIndex;
+    if (newIndex != oldIndex) {
+      int height = heights[oldIndex];
+      items.remove(oldIndex);
+      items.add(newIndex, item);
+      if (newIndex < oldIndex) {
+        System.arraycopy(heights, newIndex, heights, newIndex + 1, oldIndex - newIndex);
+      } else {
+        System.arraycopy(heights, oldIndex + 1, heights, oldIndex, newIndex - oldIndex);
+      }
+      heights[newIndex] = height;
+      topsValid = false;
+    }
+
+    // put the dragged row back in place, along with any that moved
+    rowsMoved = true;
+    renderVisibleRows();
+
+    if (newIndex != oldIndex) {
+      for (int i=0; i<reorderListeners.size(); i++) {
+        ((ReorderListener) reorderListeners.get(i)).itemMoved(this, item, oldIndex, newIndex);
+      }
+    }
+  }
+
+  /**
+   * Returns the offset of the insertion marker for an item inserted at
+   * index, which is on the line between two rows
+   */
+  private int getMarkerTop(int index) {
+    return Math.max(0, tops[index] - 1);
+  }
+}
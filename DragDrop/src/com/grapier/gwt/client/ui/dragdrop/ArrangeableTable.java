@@ -1,14 +1,25 @@
 package com.grapier.gwt.client.ui.dragdrop;
 
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
+import com.google.gwt.user.client.Command;
 import com.google.gwt.user.client.DOM;
+import com.google.gwt.user.client.DeferredCommand;
 import com.google.gwt.user.client.Element;
+import com.google.gwt.user.client.Event;
+import com.google.gwt.user.client.IncrementalCommand;
+import com.google.gwt.user.client.Timer;
+import com.google.gwt.user.client.Window;
+import com.google.gwt.user.client.WindowScrollListener;
+import com.google.gwt.user.client.ui.AbsolutePanel;
 import com.google.gwt.user.client.ui.Grid;
 import com.google.gwt.user.client.ui.RootPanel;
 import com.google.gwt.user.client.ui.SimplePanel;
 import com.google.gwt.user.client.ui.Widget;
+import com.grapier.gwt.client.ui.dragdrop.TableArrangement.Span;
+import com.grapier.gwt.client.ui.dragdrop.TableArrangement.TableFullException;
 import com.grapier.gwt.client.util.DomUtils;
 import com.grapier.gwt.client.util.Position;
 
@@ -22,13 +33,116 @@ import com.grapier.gwt.client.util.Position;
  * - whether all widgets in the table should be compacted horizontally to the left
  * - what to do when you try to move one widget to a spot with an existing widget
  * 
+ * A widget may span several rows and columns; its Position is always that
+ * of its top-left cell.  Where the widgets are, and how they are squeezed
+ * and compacted, is kept in a TableArrangement, which the table shows as
+ * its cells.
+ * 
+ * Each widget is dragged by a handle: a DragAwareWidget, often wrapped
+ * around the widget itself, or, for big tables where the extra elements
+ * add up, a DragBehavior attached to the widget without wrapping it.
+ * 
+ * Widgets that are expensive to create can be added lazily, as a
+ * WidgetPlaceholder.  The real widget is only created once the
+ * placeholder's cell is visible in the window, or once it is dragged.
+ * 
+ * With setDragGhost(true), a lightweight ghost follows the mouse instead of
+ * the dragged widget, and the widget itself stays attached to the table,
+ * parked out of sight, until it's dropped.  Use this for widgets that are
+ * expensive to detach and lay out again, like charts or frames.
+ * 
+ * For very big tables, setDeferredLayout(true) keeps dragging smooth by
+ * rearranging the table after the mouse events have been handled, only
+ * for the latest cell hovered over, and compacting in small slices.
+ * 
+ * On slow machines, setHoverBudget() keeps dragging smooth by doing less
+ * for each hover, down to showing nothing until the drop, whenever hovers
+ * take longer than the budget.
+ * 
+ * With setAnimated(true), widgets slide into their new cells when the 
+ * table is rearranged, instead of jumping there.
+ * 
+ * For big tables, setFixedLayout(true) lets the browser lay out the table
+ * from the cell widths alone, without looking at what's in the cells.
+ * An ArrangeableBoard arranges widgets by the same rules, but as tiles on
+ * an AbsolutePanel, with no elements at all for empty cells.
+ * 
+ * Widgets can also be selected with setSelected().  Dragging any selected
+ * widget drags the whole selection along with it as a rigid block, keeping
+ * the widgets in the same arrangement relative to each other.
+ * 
+ * Tables that share a DropTargetRegistry accept widgets dragged out of each
+ * other, and can drop their widgets onto the plain drop targets registered
+ * there.  Group drags stay within their own table.
+ * 
+ * With setMaxSize(), the table never grows past a given number of rows and
+ * columns; an OverflowPolicy says what happens to widgets that would be
+ * squeezed past it.
+ * 
+ * To save arrangements as they change, add a LayoutListener.  It is told
+ * which widgets have moved, from where to where, and when the table has
+ * changed size; changes made during a drag are only reported, as their net
+ * effect, once the drag is dropped.
+ * 
  * @author chungwu
  */
 public class ArrangeableTable extends Grid {
 
+  /**
+   * Listens for widgets moving around in an ArrangeableTable
+   */
+  public interface LayoutListener {
+    /**
+     * Widgets in the table have moved.  changes has a LayoutChange for
+     * each widget whose position is different from the last time the
+     * listener was told about it.
+     * 
+     * @gwt.typeArgs changes <com.grapier.gwt.client.ui.dragdrop.ArrangeableTable.LayoutChange>
+     */
+    public void layoutChanged(ArrangeableTable sender, List changes);
+    
+    /**
+     * The table now has rowCount rows and colCount columns
+     */
+    public void tableResized(ArrangeableTable sender, int rowCount, int colCount);
+  }
+  
+  /**
+   * A widget that has moved from oldPosition to newPosition.  oldPosition
+   * is null if the widget has been added to the table, and newPosition is
+   * null if it has been removed.
+   */
+  public static class LayoutChange {
+    private Widget widget;
+    private Position oldPosition;
+    private Position newPosition;
+    
+    public LayoutChange(Widget widget, Position oldPosition, Position newPosition) {
+      this.widget = widget;
+      this.oldPosition = oldPosition;
+      this.newPosition = newPosition;
+    }
+    
+    public Widget getWidget() {
+      return widget;
+    }
+    
+    public Position getOldPosition() {
+      return oldPosition;
+    }
+    
+    public Position getNewPosition() {
+      return newPosition;
+    }
+  }
+  
   /**
    * strategy interface for deciding what to do when a widget in one position
-   * is to replace another widget in a different position
+   * is to replace another widget in a different position.  For widgets
+   * spanning several cells, positions are those of their top-left cells; if
+   * the returned position would still overlap the widget doing the
+   * squeezing, the table keeps sliding the squeezed widget in the same
+   * direction until it's clear.
    */
   public interface SqueezeStrategy {
     /**
@@ -69,46 +183,392 @@ public class ArrangeableTable extends Grid {
       }
     };
   }
+
+  /**
+   * What to do with a widget that would be squeezed past the maximum size
+   * of the table; see setMaxSize()
+   */
+  public static final class OverflowPolicy {
+    // don't rearrange the table at all; the shadow stays where it was
+    public static final OverflowPolicy REJECT = new OverflowPolicy("reject");
+
+    // put the widget into the first free place within the maximum size,
+    // or reject the rearrangement if there is none
+    public static final OverflowPolicy WRAP = new OverflowPolicy("wrap");
+
+    // take the widget out of the table, and hand it to the OverflowHandler
+    // at the drop, unless a later hover has made room for it again
+    public static final OverflowPolicy OVERFLOW = new OverflowPolicy("overflow");
+
+    private String name;
+
+    private OverflowPolicy(String name) {
+      this.name = name;
+    }
+
+    public String toString() {
+      return name;
+    }
+  }
+
+  /**
+   * Takes the widgets squeezed out of an ArrangeableTable with the
+   * OVERFLOW policy, say into a tray beside the table
+   */
+  public interface OverflowHandler {
+    /**
+     * Called once the widget has been taken out of the table, at the end
+     * of the drag that squeezed it out.  handle is
+     * the handle it was dragged by, which the table no longer listens to;
+     * if the table attached it itself, it has been detached.
+     */
+    public void widgetOverflowed(ArrangeableTable sender, Widget widget, DragBehavior handle);
+  }
   
-  private boolean compactVertically;
-  private boolean compactHorizontally;
   private int minRows;
   private int minCols;
+  private OverflowPolicy overflowPolicy;
+  private OverflowHandler overflowHandler;
   private SqueezeStrategy squeezeStrategy;
-  private Map widgetPositionMap;
+  
+  // where the widgets are, and the rules for moving them around; the
+  // table shows it as its cells
+  private TableArrangement arrangement;
+  
+  // when dragging one of our widgets, the tables that widgets have been
+  // squeezed out of on the way
+  
+  /**
+   * @gwt.typeArgs <com.grapier.gwt.client.ui.dragdrop.ArrangeableTable>
+   */
+  private List overflowingTables;
+  private Map widgetHandleMap;
+  private Map widgetListenersMap;
+  
+  // the handles this table attached to widgets that came without one,
+  // which it detaches again when it's done with them
+  
+  /**
+   * @gwt.typeArgs <com.grapier.gwt.client.ui.dragdrop.DragBehavior>
+   */
+  private List attachedHandles;
+  private DropTargetRegistry registry;
+  
+  // the LayoutListeners; for each widget that has moved since they were
+  // last told, where it was then (null if it wasn't in the table); and
+  // the size of the table they were last told about
+  
+  /**
+   * @gwt.typeArgs <com.grapier.gwt.client.ui.dragdrop.ArrangeableTable.LayoutListener>
+   */
+  private List layoutListeners;
+  private Map movedWidgetOldPositions;
+  private int reportedRows;
+  private int reportedCols;
+  private boolean layoutChangesScheduled;
+  private int layoutChangeDelay;
+  private Timer layoutChangeTimer;
+  
+  /**
+   * @gwt.typeArgs <com.grapier.gwt.client.ui.dragdrop.WidgetPlaceholder>
+   */
+  private List placeholders;
+  private boolean materializeScheduled;
+  
+  // where the rows and columns were when placeholders were last looked
+  // for, kept while no cell has moved and the table itself hasn't moved
+  // or changed size
+  private CellBounds placeholderCellBounds;
+  private int placeholderCellMoves;
+  private int[] placeholderTableBounds;
+  
+  // materializes placeholders as they're scrolled into view; only
+  // listening while this table is on the page and has placeholders
+  private WindowScrollListener placeholderScrollListener;
   private String shadowWidgetStyleName;
+  private String selectedWidgetStyleName;
+  private String ghostStyleName;
+  private boolean dragGhost;
   private String cellHeight;
   private String cellWidth;
+  private boolean autoScroll;
+  
+  // -1 until setDragThreshold() is called, to leave the handles' own
+  // thresholds alone
+  private int dragThreshold;
+  private int hoverDwell;
+  private int hoverHysteresis;
+  
+  // with a hoverBudget, how much of the rearranging is done for each
+  // hover, and what each of those last cost, in milliseconds
+  private int hoverBudget;
+  private int hoverQuality;
+  private double[] hoverCosts;
+  private DropTarget previewTarget;
+  
+  // with deferredLayout, the latest cell hovered over, waiting to be laid
+  // out; and a count of hovers, so that compaction in progress for an 
+  // earlier hover can tell it's out of date
+  private boolean deferredLayout;
+  private RearrangeAnimator animator;
+  private Widget pendingHoverTarget;
+  private boolean hoverPending;
+  private int layoutGeneration;
 
   private Widget draggedWidget;
+  private DragDropListener draggedWidgetDropListener;
+  
+  // the shadow of a dragged widget in this table, which may have been
+  // dragged out of another table sharing our registry
   private SimplePanel shadowWidget;
+  
+  // when dragging one of our widgets, the table currently holding its
+  // shadow, and the plain drop target it's hovering over, if any
+  private ArrangeableTable shadowTable;
+  private Widget hoveredForeignTarget;
+
   private String oldWidth;
   private String oldHeight;
   
+  // the Widget that actually follows the mouse around; either the
+  // draggedWidget, its ghost, or a panel holding all the widgets in a 
+  // group drag
+  private Widget draggedProxy;
+  
+  // a placeholder that became its real widget as it was dragged; its
+  // handle is running the drag, so it is only unhooked at the drop
+  private WidgetPlaceholder draggedPlaceholder;
+  
+  // a hidden element holding the draggedWidget while its ghost is dragged
+  private Element parkingElement;
+  
+  // shadows from earlier drags, to be reused
+  
+  /**
+   * @gwt.typeArgs <com.google.gwt.user.client.ui.SimplePanel>
+   */
+  private List shadowPool;
+  
+  /**
+   * @gwt.typeArgs <com.google.gwt.user.client.ui.Widget>
+   */
+  private List selectedWidgets;
+  
+  // when dragging a group, these lists are filled in parallel with each
+  // widget in the group, its shadow, its Position relative to the
+  // draggedWidget, and its original width and height.  They're null
+  // when we're not dragging a group.
+  
+  /**
+   * @gwt.typeArgs <com.google.gwt.user.client.ui.Widget>
+   */
+  private List groupWidgets;
+  
+  /**
+   * @gwt.typeArgs <com.google.gwt.user.client.ui.SimplePanel>
+   */
+  private List groupShadows;
+  
+  /**
+   * @gwt.typeArgs <com.grapier.gwt.client.util.Position>
+   */
+  private List groupOffsets;
+  
+  /**
+   * @gwt.typeArgs <java.lang.String>
+   */
+  private List groupOldWidths;
+  
+  /**
+   * @gwt.typeArgs <java.lang.String>
+   */
+  private List groupOldHeights;
+  
   /**
    * @gwt.typeArgs <com.grapier.gwt.client.ui.dragdrop.ArrangeableTable.DropTarget>
    */
   private List dropTargets;
+  
+  // the number of columns the dropTargets list was filled for
+  private int dropTargetCols;
+
+  // how much of the rearranging is done for a hover, with a hoverBudget:
+  // everything; no compaction until the drop; only highlighting the cell
+  // hovered over; or nothing until the drop
+  private static final int HOVER_FULL = 0;
+  private static final int HOVER_NO_COMPACTION = 1;
+  private static final int HOVER_SHADOW_ONLY = 2;
+  private static final int HOVER_PAUSED = 3;
+  
+  // how much of the cost of a better hover quality is remembered at each
+  // hover made without it
+  private static final double HOVER_COST_DECAY = 0.9;
 
   /**
    * A DropTarget is a Widget wrapped around a cell "td" element.  It
-   * remembers where it is in the grid.
+   * remembers where it is in the grid, and which table it belongs to.
    */
-  private static class DropTarget extends Widget {
+  static class DropTarget extends Widget {
+    private ArrangeableTable table;
     private Position position;
     
-    public DropTarget(int row, int col, Element tdElement, String width, String height) {
+    public DropTarget(ArrangeableTable table, int row, int col, Element tdElement, String width, String height) {
       this.setElement(tdElement);
+      this.table = table;
       this.position = new Position(row, col);
       this.setWidth(width);
       this.setHeight(height);
     }
     
+    public ArrangeableTable getTable() {
+      return table;
+    }
+    
     public Position getPosition() {
       return position;
     }
   }
   
+  /**
+   * Compacts a table holding the shadow of the widget being dragged, a
+   * few rows at a time, spending at most SLICE_MILLIS at each go.  Gives
+   * up as soon as the drag has hovered over another cell, since that
+   * hover will start a compaction of its own.  The time spent counts
+   * towards the cost of the hover, with a hoverBudget.
+   */
+  private class CompactionCommand implements IncrementalCommand {
+    private static final int SLICE_MILLIS = 8;
+    
+    private ArrangeableTable table;
+    private TableArrangement arrangement;
+    private int generation;
+    private boolean vertical;
+    private int nextRow;
+    
+    // the table's count of cell changes when this pass started
+    private int start;
+    
+    public CompactionCommand(ArrangeableTable table) {
+      this.table = table;
+      this.arrangement = table.arrangement;
+      this.generation = layoutGeneration;
+      this.vertical = arrangement.compactsVertically();
+      this.nextRow = 0;
+      this.start = arrangement.getCellChanges();
+    }
+    
+    public boolean execute() {
+      if (generation != layoutGeneration) {
+        return false;
+      }
+      
+      double sliceStart = DomUtils.now();
+      double deadline = sliceStart + SLICE_MILLIS;
+      int cellMoves = arrangement.getCellMoves();
+      boolean done = false;
+      table.beginRearrange();
+      while (!done && DomUtils.now() <= deadline) {
+        if (nextRow < table.getRowCount() && vertical) {
+          arrangement.compactVertically(nextRow, nextRow+1);
+          nextRow++;
+        } else if (nextRow < table.getRowCount() && arrangement.compactsHorizontally()) {
+          arrangement.compactHorizontally(nextRow, nextRow+1);
+          nextRow++;
+        } else if (vertical) {
+          // done compacting vertically; now do it horizontally
+          arrangement.setCompactedVerticallyAt(start);
+          vertical = false;
+          nextRow = 0;
+          start = arrangement.getCellChanges();
+        } else {
+          if (arrangement.compactsHorizontally()) {
+            arrangement.setCompactedHorizontallyAt(start);
+          }
+          done = true;
+        }
+      }
+      if (done) {
+        table.arrangement.restoreOverflowedWidgets(true);
+      }
+      table.endRearrange();
+      
+      // if the cells have moved around, the drop listener has to
+      // measure them again
+      if (arrangement.getCellMoves() != cellMoves) {
+        draggedWidgetDropListener.invalidateTargetCache();
+      }
+      addCompactionCost(DomUtils.now() - sliceStart);
+      return !done;
+    }
+  }
+  
+  /**
+   * Shows the arrangement as the cells of this table.  Widgets moving
+   * around stay children of the table; only their elements move from
+   * cell to cell, so nothing is detached, and no HTML is parsed.
+   */
+  private class CellRenderer implements TableArrangement.Renderer {
+    public void widgetMoving(Widget widget, Position oldPosition) {
+      noteMoved(widget, oldPosition);
+    }
+    
+    public void widgetLifted(Widget widget, Position position, int rowSpan, int colSpan) {
+      if (rowSpan != 1 || colSpan != 1) {
+        setCellSpan(position, rowSpan, colSpan, false);
+      }
+      Element td = getCellFormatter().getElement(position.getRow(), position.getCol());
+      DOM.removeChild(td, widget.getElement());
+      DOM.setInnerText(td, "\u00a0");
+    }
+    
+    public void widgetPlaced(Widget widget, Position position, int rowSpan, int colSpan) {
+      if (isLifted(widget)) {
+        placeLiftedWidget(widget, position);
+      } else {
+        ArrangeableTable.super.setWidget(position.getRow(), position.getCol(), widget);
+      }
+      if (rowSpan != 1 || colSpan != 1) {
+        setCellSpan(position, rowSpan, colSpan, true);
+      }
+    }
+    
+    public void removeWidget(Widget widget) {
+      removeWithoutCompacting(widget);
+    }
+    
+    public void resize(int rows, int cols) {
+      if (rows != getRowCount()) {
+        resizeRows(rows);
+      }
+      if (cols != getColumnCount()) {
+        resizeColumns(cols);
+      }
+    }
+    
+    public Position getSqueezedToPosition(Position oldPosition, Position newPosition) {
+      return squeezeStrategy.getSqueezedToPosition(ArrangeableTable.this, oldPosition, newPosition);
+    }
+    
+    public boolean isCompactable(Widget widget) {
+      return !isShadowWidget(widget);
+    }
+    
+    /**
+     * With the OVERFLOW policy, parks the widget until the drop, in case
+     * a later hover makes room for it again; otherwise, rejects the whole
+     * rearrangement
+     */
+    public void overflow(Widget widget, Position oldPosition) {
+      if (overflowPolicy != OverflowPolicy.OVERFLOW || overflowHandler == null) {
+        throw new TableFullException(oldPosition);
+      }
+      
+      // the widget is still a child of the table, so it's parked like the
+      // widget of a ghost drag
+      DOM.appendChild(getParkingElement(), widget.getElement());
+    }
+  }
+  
   /**
    * Constructs an ArrangeableTable
    * 
@@ -125,18 +585,45 @@ public class ArrangeableTable extends Grid {
     super();
     this.minRows = minRows;
     this.minCols = minCols;
-    this.compactVertically = compactVertically;
-    this.compactHorizontally = compactHorizontally;
     this.squeezeStrategy = strategy;
+    this.overflowPolicy = OverflowPolicy.REJECT;
     
     this.shadowWidgetStyleName = "drop-target-highlighted";
+    this.selectedWidgetStyleName = "arrangeable-widget-selected";
+    this.ghostStyleName = "arrangeable-ghost";
     this.cellHeight = "100%";
     this.cellWidth = "100%";
+    this.autoScroll = true;
+    this.dragThreshold = -1;
     
     this.dropTargets = DomUtils.newList();
-    this.widgetPositionMap = DomUtils.newMap();
+    this.arrangement = new TableArrangement(
+        new CellRenderer(), minRows, minCols, compactVertically, compactHorizontally);
+    this.widgetHandleMap = DomUtils.newMap();
+    this.widgetListenersMap = DomUtils.newMap();
+    this.attachedHandles = DomUtils.newList();
+    this.overflowingTables = DomUtils.newList();
+    this.layoutListeners = DomUtils.newList();
+    this.movedWidgetOldPositions = DomUtils.newMap();
+    this.selectedWidgets = DomUtils.newList();
+    this.placeholders = DomUtils.newList();
+    this.shadowPool = DomUtils.newList();
+    this.hoverCosts = new double[HOVER_PAUSED + 1];
+    this.animator = new RearrangeAnimator();
     
     this.resize(minRows, minCols);
+    sinkEvents(Event.ONMOUSEDOWN);
+  }
+  
+  /**
+   * Passes mouse downs on to the DragBehaviors attached to the widgets
+   * in here, which the event preview misses while a popup is showing
+   */
+  public void onBrowserEvent(Event event) {
+    super.onBrowserEvent(event);
+    if (DOM.eventGetType(event) == Event.ONMOUSEDOWN) {
+      DragBehavior.pressAttached(event);
+    }
   }
   
   public Widget getWidget(Position position) {
@@ -148,7 +635,21 @@ public class ArrangeableTable extends Grid {
    * cannot be found in the table
    */
   public Position findWidget(Widget widget) {
-    return (Position) widgetPositionMap.get(widget);
+    return arrangement.findWidget(widget);
+  }
+
+  /**
+   * Returns the number of rows the argument widget spans
+   */
+  public int getRowSpan(Widget widget) {
+    return getSpan(widget).rows;
+  }
+  
+  /**
+   * Returns the number of columns the argument widget spans
+   */
+  public int getColSpan(Widget widget) {
+    return getSpan(widget).cols;
   }
 
   /**
@@ -157,14 +658,16 @@ public class ArrangeableTable extends Grid {
    * column by column, in the obvious way.
    */
   public Position getNextEmptyCellPosition() {
-    for (int r=0; r<getRowCount(); r++) {
-      for (int c=0; c<getColumnCount(); c++) {
-        if (isCellEmpty(r, c)) {
-          return new Position(r, c);
-        }
-      }
-    }
-    return new Position(getRowCount(), 0);
+    return findFreePosition(1, 1);
+  }
+  
+  /**
+   * Returns the Position of the earliest place, iterating row by row,
+   * column by column, where a widget spanning rowSpan rows and colSpan
+   * columns would fit without overlapping anything.
+   */
+  public Position findFreePosition(int rowSpan, int colSpan) {
+    return arrangement.findFreePosition(rowSpan, colSpan);
   }
   
   /**
@@ -172,371 +675,1647 @@ public class ArrangeableTable extends Grid {
    * by the argument handle.
    */
   public void addWidget(Widget widget, DragAwareWidget handle) {
-    setWidget(widget, handle, getNextEmptyCellPosition());
+    addWidget(widget, handle.getDragBehavior(), 1, 1);
   }
-
+  
   /**
-   * Adds a Widget to the specified position, which can be dragged around
-   * by the argument handle.  Existing widgets at the same position will
-   * be replaced.
+   * Adds a Widget to the next empty cell, which can be dragged around
+   * by the argument DragBehavior; say, one attached to the widget itself
+   * with DragBehavior.attach(), so it isn't wrapped in anything.
    */
-  public void setWidget(Widget widget, DragAwareWidget handle, Position position) {
-    addDragListeners(widget, handle);
-    setWidget(widget, position);
+  public void addWidget(Widget widget, DragBehavior handle) {
+    addWidget(widget, handle, 1, 1);
+  }
+  
+  public void addWidget(Widget widget, DragAwareWidget handle, int rowSpan, int colSpan) {
+    addWidget(widget, handle.getDragBehavior(), rowSpan, colSpan);
   }
   
   /**
-   * Sets a Widget to the specified position.  Nothing will be done to make
-   * it drag-movable.
+   * Adds a Widget spanning rowSpan rows and colSpan columns to the first
+   * place it fits, which can be dragged around by the argument handle.
+   * If it doesn't fit within the maximum size of the table, it is handed
+   * to the OverflowHandler with the OVERFLOW policy; otherwise an
+   * IndexOutOfBoundsException is thrown.
    */
-  public void setWidget(Widget widget, Position position) {
-    ensurePositionExists(position);
-    super.setWidget(position.getRow(), position.getCol(), widget);
-    widgetPositionMap.put(widget, position);
+  public void addWidget(Widget widget, DragBehavior handle, int rowSpan, int colSpan) {
+    Position position = arrangement.findFreePositionWithinMaximum(new Span(rowSpan, colSpan));
+    if (position == null) {
+      if (overflowPolicy != OverflowPolicy.OVERFLOW || overflowHandler == null) {
+        throw new TableFullException(findFreePosition(rowSpan, colSpan));
+      }
+      overflowHandler.widgetOverflowed(this, widget, handle);
+      return;
+    }
+    setWidget(widget, handle, position, rowSpan, colSpan);
   }
 
   /**
-   * Sets a Widget to the specified position.  Nothing will be done to make
-   * it drag-movable.
+   * Adds a placeholder to the next empty cell, for a widget that will be
+   * created by the factory once the cell is visible or the placeholder
+   * is dragged.
    */
-  public void setWidget(int row, int col, Widget widget) {
-    setWidget(widget, new Position(row, col));
+  public WidgetPlaceholder addLazyWidget(WidgetPlaceholder.WidgetFactory factory) {
+    return addLazyWidget(factory, 1, 1);
   }
   
   /**
-   * Removes the argument Widget.  Will also compact the table if you've
-   * set compactHorizontally or compactVertically to be true.
+   * Adds a placeholder spanning rowSpan rows and colSpan columns to the
+   * first place it fits, for a widget that will be created by the factory
+   * once the placeholder is visible or dragged.
    */
-  public boolean remove(Widget widget) {
-    boolean rc = this.removeWithoutCompacting(widget);
-    if (rc) {
-      compactWidgets();
-      removeEmptyRowsAndColumnsFromFringes();
+  public WidgetPlaceholder addLazyWidget(WidgetPlaceholder.WidgetFactory factory, int rowSpan, int colSpan) {
+    WidgetPlaceholder placeholder = new WidgetPlaceholder(factory);
+    addWidget(placeholder, placeholder, rowSpan, colSpan);
+    return placeholder;
+  }
+  
+  /**
+   * Creates the real widget for a placeholder in this table, and puts it
+   * in place of the placeholder.  Returns the real widget; null if the
+   * placeholder isn't in the table.
+   */
+  public Widget materialize(WidgetPlaceholder placeholder) {
+    Widget widget = replacePlaceholder(placeholder);
+    if (widget != null) {
+      forgetWidget(placeholder);
     }
-    return rc;
+    return widget;
   }
   
   /**
-   * Sets the style of the shadow of the widget being dragged
+   * Creates the real widget for a placeholder in this table, and puts it
+   * in place of the placeholder, leaving the placeholder's handle hooked
+   * up.  Returns null if the placeholder isn't in the table.
    */
-  public void setShadowStyleName(String styleName) {
-    shadowWidgetStyleName = styleName;
+  private Widget replacePlaceholder(WidgetPlaceholder placeholder) {
+    Position position = findWidget(placeholder);
+    if (position == null) {
+      return null;
+    }
+    
+    Span span = getSpan(placeholder);
+    boolean selected = isSelected(placeholder);
+    WidgetPlaceholder.WidgetFactory factory = placeholder.getFactory();
+    Widget widget = factory.createWidget();
+    DragBehavior handle = getDragBehavior(widget, factory.getHandle(widget));
+    
+    this.removeWithoutCompacting(placeholder);
+    setSelected(placeholder, false);
+    setWidget(widget, handle, position, span.rows, span.cols);
+    setSelected(widget, selected);
+    return widget;
   }
   
   /**
-   * Sets the width of each cell
+   * Creates the real widgets of all the placeholders that are at least
+   * partly visible in the window.  This is done for you whenever the table
+   * is attached or rearranged, or the window is scrolled; call it yourself
+   * when a containing panel has been scrolled.
    */
-  public void setCellWidth(String width) {
-    cellWidth = width;
-    fillDropTargets();
+  public void materializeVisibleWidgets() {
+    materializeScheduled = false;
+    if (placeholders.isEmpty() || !isAttached()) {
+      return;
+    }
+    
+    int windowLeft = DomUtils.getScrollLeft();
+    int windowTop = DomUtils.getScrollTop();
+    int windowRight = windowLeft + Window.getClientWidth();
+    int windowBottom = windowTop + Window.getClientHeight();
+    
+    // find the range of cells in the window by their rows and columns,
+    // and only then start changing the table
+    CellBounds cells = getPlaceholderCellBounds();
+    int firstRow = cells.findFirstRowEndingAfter(windowTop);
+    int lastRow = cells.findLastRowStartingBefore(windowBottom);
+    int firstCol = cells.findFirstColumnEndingAfter(windowLeft);
+    int lastCol = cells.findLastColumnStartingBefore(windowRight);
+    List visible = DomUtils.newList();
+    for (int r=firstRow; r<=lastRow; r++) {
+      for (int c=firstCol; c<=lastCol; c++) {
+        // a placeholder spanning several cells is taken at the first of
+        // them in the window
+        Widget widget = arrangement.getWidgetCovering(r, c);
+        if (!(widget instanceof WidgetPlaceholder)) {
+          continue;
+        }
+        Position position = findWidget(widget);
+        if (Math.max(position.getRow(), firstRow) == r && Math.max(position.getCol(), firstCol) == c) {
+          visible.add(widget);
+        }
+      }
+    }
+    
+    for (int i=0; i<visible.size(); i++) {
+      materialize((WidgetPlaceholder) visible.get(i));
+    }
   }
-
+  
   /**
-   * Sets the height of each cell
+   * Returns where the rows and columns are, measuring them again only if
+   * a cell has moved, or the table has moved or changed size, since they
+   * were last measured
    */
-  public void setCellHeight(String height) {
-    cellHeight = height;
-    fillDropTargets();
+  private CellBounds getPlaceholderCellBounds() {
+    int[] tableBounds = new int[] {getAbsoluteLeft(), getAbsoluteTop(),
+        getOffsetWidth(), getOffsetHeight()};
+    if (placeholderCellBounds == null
+        || placeholderCellMoves != arrangement.getCellMoves()
+        || !isSameBounds(tableBounds, placeholderTableBounds)) {
+      placeholderCellBounds = new CellBounds(this);
+      placeholderCellMoves = arrangement.getCellMoves();
+      placeholderTableBounds = tableBounds;
+    }
+    return placeholderCellBounds;
+  }
+  
+  private static boolean isSameBounds(int[] bounds, int[] otherBounds) {
+    for (int i=0; i<bounds.length; i++) {
+      if (bounds[i] != otherBounds[i]) {
+        return false;
+      }
+    }
+    return true;
   }
   
   /**
-   * Installs the handle, by which we can drag the widget around, with the
-   * necessary drag listeners
+   * Materializes visible placeholders once whatever we're doing now is
+   * finished, and the browser has had a chance to lay out the table
    */
-  private void addDragListeners(final Widget widget, DragAwareWidget handle) {    
+  private void scheduleMaterializeVisibleWidgets() {
+    if (materializeScheduled || placeholders.isEmpty()) {
+      return;
+    }
     
-    // add a drag listener to listen for the start of a drag
-    handle.addDragListener(new DragAwareWidget.DragListener() {
-      public void startDragging(int mouseX, int mouseY) {
-        startDraggingWidget(widget);
-      }
-      public void drag(int mouseX, int mouseY, int deltaX, int deltaY) {
-      }
-      public void endDragging(int mouseX, int mouseY, int deltaX, int deltaY) {
+    materializeScheduled = true;
+    DeferredCommand.addCommand(new Command() {
+      public void execute() {
+        materializeVisibleWidgets();
       }
     });
-
-    // add a drag listener that moves the widget
-    handle.addDragListener(new DragMoveListener(widget));
-    
-    // add a drag listener that listens for hovering and drops over 
-    // the DropTargets
-    handle.addDragListener(new DragDropListener(dropTargets, new DragDropListener.WidgetHandler() {
-      public void handleDropWidget(Widget t) {
-        dropDraggedWidget();
-      }
-
-      public void handleHoverWidget(Widget t) {
-        hoverOverDropTarget((DropTarget) t);
-      }
-    }));
   }
-
+  
   /**
-   * Prepares the widget for drag.
+   * Joins the registry, if there is one, while this table is on the page
    */
-  private void startDraggingWidget(Widget widget) {
+  protected void onLoad() {
+    super.onLoad();
+    if (registry != null) {
+      registry.addTable(this);
+    }
+    listenForScrolling(true);
+    scheduleMaterializeVisibleWidgets();
+  }
+  
+  /**
+   * Leaves the registry, so a table taken off the page for good isn't 
+   * kept around by it
+   */
+  protected void onUnload() {
+    if (registry != null) {
+      registry.removeTable(this);
+    }
+    listenForScrolling(false);
+    super.onUnload();
+  }
+  
+  /**
+   * Listens to the window scrolling if the table is attached and has
+   * placeholders left to materialize, and stops listening otherwise
+   */
+  private void listenForScrolling(boolean attached) {
+    boolean listen = attached && !placeholders.isEmpty();
+    if (listen && placeholderScrollListener == null) {
+      placeholderScrollListener = new WindowScrollListener() {
+        public void onWindowScrolled(int scrollLeft, int scrollTop) {
+          scheduleMaterializeVisibleWidgets();
+        }
+      };
+      Window.addWindowScrollListener(placeholderScrollListener);
+    } else if (!listen && placeholderScrollListener != null) {
+      Window.removeWindowScrollListener(placeholderScrollListener);
+      placeholderScrollListener = null;
+    }
+  }
+  
+  /**
+   * Remembers where a widget that is about to move was, if it's the first
+   * time it moves since the LayoutListeners were last told
+   */
+  private void noteMoved(Widget widget, Position oldPosition) {
+    animator.noteMoving(widget);
+    if (layoutListeners.isEmpty() || isShadowWidget(widget) 
+        || movedWidgetOldPositions.containsKey(widget)) {
+      return;
+    }
+    movedWidgetOldPositions.put(widget, oldPosition);
+    scheduleLayoutChanges();
+  }
+  
+  /**
+   * Tells the LayoutListeners about the changes once whatever we're doing
+   * now is finished, or after the layoutChangeDelay
+   */
+  private void scheduleLayoutChanges() {
+    if (layoutListeners.isEmpty()) {
+      return;
+    }
+    
+    if (layoutChangeDelay > 0) {
+      if (layoutChangeTimer == null) {
+        layoutChangeTimer = new Timer() {
+          public void run() {
+            fireLayoutChanges();
+          }
+        };
+      }
+      layoutChangeTimer.cancel();
+      layoutChangeTimer.schedule(layoutChangeDelay);
+    } else if (!layoutChangesScheduled) {
+      layoutChangesScheduled = true;
+      DeferredCommand.addCommand(new Command() {
+        public void execute() {
+          layoutChangesScheduled = false;
+          fireLayoutChanges();
+        }
+      });
+    }
+  }
+  
+  /**
+   * Tells the LayoutListeners about the net changes since they were last
+   * told.  Does nothing in the middle of a drag; the changes will be
+   * told once it's dropped.
+   */
+  private void fireLayoutChanges() {
+    if (draggedWidget != null || shadowWidget != null || arrangement.hasOverflowedWidgets()) {
+      return;
+    }
+    
+    List changes = DomUtils.newList();
+    for (Iterator iter = movedWidgetOldPositions.keySet().iterator(); iter.hasNext(); ) {
+      Widget widget = (Widget) iter.next();
+      Position oldPosition = (Position) movedWidgetOldPositions.get(widget);
+      Position newPosition = findWidget(widget);
+      if (!DomUtils.nullSafeEquals(oldPosition, newPosition)) {
+        changes.add(new LayoutChange(widget, oldPosition, newPosition));
+      }
+    }
+    movedWidgetOldPositions.clear();
+    
+    boolean resized = (getRowCount() != reportedRows || getColumnCount() != reportedCols);
+    reportedRows = getRowCount();
+    reportedCols = getColumnCount();
+    
+    for (int i=0; i<layoutListeners.size(); i++) {
+      LayoutListener listener = (LayoutListener) layoutListeners.get(i);
+      if (!changes.isEmpty()) {
+        listener.layoutChanged(this, changes);
+      }
+      if (resized) {
+        listener.tableResized(this, reportedRows, reportedCols);
+      }
+    }
+  }
+  
+  /**
+   * Adds a Widget to the specified position, which can be dragged around
+   * by the argument handle.  Existing widgets at the same position will
+   * be replaced.
+   */
+  public void setWidget(Widget widget, DragAwareWidget handle, Position position) {
+    setWidget(widget, handle.getDragBehavior(), position);
+  }
+  
+  public void setWidget(Widget widget, DragBehavior handle, Position position) {
+    adoptHandle(widget, handle);
+    setWidget(widget, position);
+  }
+  
+  /**
+   * Adds a Widget spanning rowSpan rows and colSpan columns, with its
+   * top-left cell at the specified position, which can be dragged around
+   * by the argument handle.  Existing widgets overlapping it will be
+   * replaced.
+   */
+  public void setWidget(Widget widget, DragAwareWidget handle, Position position, int rowSpan, int colSpan) {
+    setWidget(widget, handle.getDragBehavior(), position, rowSpan, colSpan);
+  }
+  
+  public void setWidget(Widget widget, DragBehavior handle, Position position, int rowSpan, int colSpan) {
+    adoptHandle(widget, handle);
+    setWidget(widget, position, rowSpan, colSpan);
+  }
+  
+  /**
+   * Sets a Widget spanning rowSpan rows and colSpan columns, with its
+   * top-left cell at the specified position.  Nothing will be done to 
+   * make it drag-movable.
+   */
+  public void setWidget(Widget widget, Position position, int rowSpan, int colSpan) {
+    arrangement.setSpan(widget, rowSpan, colSpan);
+    setWidget(widget, position);
+  }
+  
+  /**
+   * Sets a Widget to the specified position.  Nothing will be done to make
+   * it drag-movable.  If the widget has been given a span, it keeps it.
+   */
+  public void setWidget(Widget widget, Position position) {
+    arrangement.setWidget(widget, position);
+  }
+
+  /**
+   * Sets a Widget to the specified position.  Nothing will be done to make
+   * it drag-movable.
+   */
+  public void setWidget(int row, int col, Widget widget) {
+    setWidget(widget, new Position(row, col));
+  }
+  
+  /**
+   * Removes the argument Widget, and takes the drag listeners this table
+   * added off its handle.  Will also compact the table if you've set 
+   * compactHorizontally or compactVertically to be true.
+   */
+  public boolean remove(Widget widget) {
+    beginRearrange();
+    boolean rc = this.removeWithoutCompacting(widget);
+    if (rc) {
+      // unhook its handle, so it doesn't keep this table around
+      forgetWidget(widget);
+      arrangement.compactWidgets();
+      arrangement.removeEmptyRowsAndColumnsFromFringes();
+    }
+    endRearrange();
+    return rc;
+  }
+  
+  /**
+   * Returns the current arrangement of the table, with each widget saved
+   * under the key the argument KeyProvider gives it.  Widgets without a
+   * key, such as the shadow of a widget being dragged, are left out.
+   */
+  public ArrangeableTableLayout getLayout(ArrangeableTableLayout.KeyProvider keyProvider) {
+    ArrangeableTableLayout layout = new ArrangeableTableLayout(getRowCount(), getColumnCount());
+    for (Iterator iter = arrangement.getWidgets().iterator(); iter.hasNext(); ) {
+      Widget widget = (Widget) iter.next();
+      String key = keyProvider.getKey(widget);
+      if (key != null) {
+        Span span = getSpan(widget);
+        layout.add(key, findWidget(widget), span.rows, span.cols);
+      }
+    }
+    return layout;
+  }
+  
+  /**
+   * Replaces everything in the table with the widgets in the argument
+   * layout, which can be dragged around by their handles.  The table is
+   * resized once, all the widgets are placed, and the drop targets are
+   * set up once at the end, so this is much cheaper than calling
+   * setWidget() for each widget.  Keys the WidgetProvider has no widget
+   * for, and widgets that would overlap one placed before them, are
+   * skipped.
+   */
+  public void restoreLayout(ArrangeableTableLayout layout, ArrangeableTableLayout.WidgetProvider widgetProvider) {
+    // take out everything that's in the table now
+    List oldWidgets = DomUtils.newList();
+    oldWidgets.addAll(arrangement.getWidgets());
+    for (int i=0; i<oldWidgets.size(); i++) {
+      Widget widget = (Widget) oldWidgets.get(i);
+      this.removeWithoutCompacting(widget);
+      forgetWidget(widget);
+    }
+    
+    // size the table once, without refreshing the drop targets yet
+    super.resizeColumns(Math.max(minCols, layout.getColumnCount()));
+    super.resizeRows(Math.max(minRows, layout.getRowCount()));
+    arrangement.setSize(getRowCount(), getColumnCount());
+    scheduleLayoutChanges();
+    
+    for (int i=0; i<layout.size(); i++) {
+      String key = layout.getKey(i);
+      Widget widget = widgetProvider.getWidget(key);
+      Position position = layout.getPosition(i);
+      int rowSpan = layout.getRowSpan(i);
+      int colSpan = layout.getColSpan(i);
+      if (widget == null 
+          || position.getRow() + rowSpan > getRowCount() 
+          || position.getCol() + colSpan > getColumnCount()
+          || !arrangement.isFree(position, rowSpan, colSpan)) {
+        continue;
+      }
+      
+      DragBehavior handle = getDragBehavior(widget, widgetProvider.getHandle(key));
+      adoptHandle(widget, handle);
+      setWidget(widget, position, rowSpan, colSpan);
+    }
+    
+    fillDropTargets(false);
+    scheduleMaterializeVisibleWidgets();
+  }
+  
+  /**
+   * Shares drop targets with the other tables and plain drop targets in the
+   * argument registry, so widgets can be dragged between them.  Only
+   * affects widgets added after this call.  The table is only in the 
+   * registry while it is attached to the page.
+   */
+  public void setDropTargetRegistry(DropTargetRegistry registry) {
+    if (this.registry != null) {
+      this.registry.removeTable(this);
+    }
+    this.registry = registry;
+    if (registry != null && isAttached()) {
+      registry.addTable(this);
+    }
+  }
+  
+  /**
+   * Sets the style of the shadow of the widget being dragged
+   */
+  public void setShadowStyleName(String styleName) {
+    shadowWidgetStyleName = styleName;
+  }
+  
+  /**
+   * Sets the style added to the ghost that follows the mouse when 
+   * dragging with setDragGhost(true)
+   */
+  public void setGhostStyleName(String styleName) {
+    ghostStyleName = styleName;
+  }
+  
+  /**
+   * Sets whether dragging a widget drags a ghost of it, rather than the
+   * widget itself.  The ghost is an empty panel of the same size and style
+   * as the widget, so it's cheap to move around; the widget stays attached
+   * to the table the whole time, and is only moved once, when it's dropped.
+   * Groups of selected widgets are always dragged as they are.
+   */
+  public void setDragGhost(boolean dragGhost) {
+    this.dragGhost = dragGhost;
+  }
+  
+  /**
+   * Sets the style added to selected widgets
+   */
+  public void setSelectedStyleName(String styleName) {
+    selectedWidgetStyleName = styleName;
+  }
+  
+  /**
+   * Selects or deselects a widget in the table.  When you drag a selected
+   * widget, all the selected widgets are dragged together.
+   */
+  public void setSelected(Widget widget, boolean selected) {
+    if (selected == isSelected(widget)) {
+      return;
+    }
+    
+    if (selected) {
+      selectedWidgets.add(widget);
+      widget.addStyleName(selectedWidgetStyleName);
+    } else {
+      selectedWidgets.remove(widget);
+      widget.removeStyleName(selectedWidgetStyleName);
+    }
+  }
+  
+  /**
+   * Returns true if the widget is selected
+   */
+  public boolean isSelected(Widget widget) {
+    return selectedWidgets.contains(widget);
+  }
+  
+  /**
+   * Deselects all the selected widgets
+   */
+  public void clearSelection() {
+    while (!selectedWidgets.isEmpty()) {
+      setSelected((Widget) selectedWidgets.get(0), false);
+    }
+  }
+  
+  /**
+   * Returns the selected widgets, in the order they were selected
+   * 
+   * @gwt.typeArgs <com.google.gwt.user.client.ui.Widget>
+   */
+  public List getSelectedWidgets() {
+    List widgets = DomUtils.newList();
+    widgets.addAll(selectedWidgets);
+    return widgets;
+  }
+  
+  /**
+   * Sets the width of each cell
+   */
+  public void setCellWidth(String width) {
+    cellWidth = width;
+    fillDropTargets(true);
+  }
+
+  /**
+   * Sets the height of each cell
+   */
+  public void setCellHeight(String height) {
+    cellHeight = height;
+    fillDropTargets(true);
+  }
+  
+  /**
+   * Sets whether the table uses the fixed table layout.  With it, the 
+   * browser takes the width of each column from the cell width, instead 
+   * of measuring the contents of every cell in the table, so moving
+   * widgets around and adding rows or columns doesn't make it lay out the
+   * whole table again.  Content too wide for its cell is cut off.  The 
+   * cell width must be set in pixels with setCellWidth().
+   */
+  public void setFixedLayout(boolean fixedLayout) {
+    Element elem = getElement();
+    DOM.setStyleAttribute(elem, "tableLayout", fixedLayout ? "fixed" : "");
+    
+    // a fixed table is as wide as its width or the sum of its columns,
+    // whichever is larger, so this makes it the sum of its columns
+    DOM.setStyleAttribute(elem, "width", fixedLayout ? "1px" : "");
+  }
+  
+  /**
+   * Sets how long, in milliseconds, a dragged widget has to stay over a
+   * cell before the table is rearranged around it.  Dragging quickly
+   * across a big table then rearranges it once, where the drag comes to
+   * rest, rather than at every cell on the way.
+   */
+  public void setHoverDwell(int millis) {
+    this.hoverDwell = millis;
+  }
+  
+  /**
+   * Sets how far, in pixels, a dragged widget has to move out of the cell
+   * it's over before it counts as over the next one
+   */
+  public void setHoverHysteresis(int pixels) {
+    this.hoverHysteresis = pixels;
+  }
+  
+  /**
+   * Sets how long, in milliseconds, rearranging the table for a hover may
+   * take; 0 means no limit, the default.  Whenever a hover takes longer,
+   * the table does less for the next ones: first it stops compacting
+   * until the drop, then it only highlights the cell the shadow would go
+   * to, and then it shows nothing until the drop.  It goes back to doing
+   * more once hovers are cheap again.
+   */
+  public void setHoverBudget(int millis) {
+    this.hoverBudget = millis;
+  }
+  
+  /**
+   * Sets whether the table is rearranged around a dragged widget after the
+   * mouse events have been handled, rather than while handling them.  The
+   * table is then only rearranged for the last cell hovered over, and
+   * compacted a few rows at a time, so the drag stays smooth even when
+   * rearranging a big table takes longer than a frame.  Compaction that
+   * hasn't finished when the drag moves on to another cell is abandoned.
+   */
+  public void setDeferredLayout(boolean deferredLayout) {
+    this.deferredLayout = deferredLayout;
+  }
+  
+  /**
+   * Sets whether widgets slide to their new cells when the table is 
+   * rearranged.  Only CSS transforms are animated, so sliding doesn't make
+   * the browser lay out the page again.
+   */
+  public void setAnimated(boolean animated) {
+    animator.setEnabled(animated);
+  }
+  
+  /**
+   * Sets how long, in milliseconds, widgets take to slide to their new
+   * cells when animated
+   */
+  public void setAnimationDuration(int millis) {
+    animator.setDuration(millis);
+  }
+  
+  /**
+   * Sets how many widgets may be sliding at once when animated; widgets
+   * moving beyond that just jump to their new cells
+   */
+  public void setMaxAnimatedWidgets(int maxAnimatedWidgets) {
+    animator.setMaxAnimated(maxAnimatedWidgets);
+  }
+  
+  /**
+   * Sets whether the page should scroll when a widget is dragged close to
+   * the edge of the window.  Only affects widgets added after this call.
+   */
+  public void setAutoScroll(boolean autoScroll) {
+    this.autoScroll = autoScroll;
+  }
+  
+  /**
+   * Sets how far, in pixels, the mouse has to move with a handle pressed
+   * before its widget starts being dragged, so that clicking a handle
+   * doesn't rearrange the table.  Applies to the widgets already in the
+   * table and to those added later; see DragAwareWidget.setDragThreshold().
+   */
+  public void setDragThreshold(int pixels) {
+    this.dragThreshold = pixels;
+    for (Iterator iter = widgetHandleMap.values().iterator(); iter.hasNext(); ) {
+      ((DragBehavior) iter.next()).setDragThreshold(pixels);
+    }
+  }
+  
+  /**
+   * Sets the most rows and columns the table may grow to as widgets are
+   * squeezed out of the way, so a single hover never has to rearrange
+   * more than maxRows x maxCols cells; 0 means no limit, the default.
+   * What happens to a widget that would be squeezed past the limit is up
+   * to the OverflowPolicy.  Setting a widget past the limit directly
+   * throws an IndexOutOfBoundsException.
+   */
+  public void setMaxSize(int maxRows, int maxCols) {
+    arrangement.setMaxSize(maxRows, maxCols);
+  }
+  
+  /**
+   * Sets what to do with widgets squeezed past the maximum size; 
+   * OverflowPolicy.REJECT by default.  OverflowPolicy.OVERFLOW needs an
+   * OverflowHandler, and rejects the rearrangement without one.
+   */
+  public void setOverflowPolicy(OverflowPolicy policy) {
+    this.overflowPolicy = policy;
+    arrangement.setWrap(policy == OverflowPolicy.WRAP);
+  }
+  
+  public void setOverflowHandler(OverflowHandler handler) {
+    this.overflowHandler = handler;
+  }
+  
+  public void addLayoutListener(LayoutListener listener) {
+    if (layoutListeners.isEmpty()) {
+      reportedRows = getRowCount();
+      reportedCols = getColumnCount();
+    }
+    layoutListeners.add(listener);
+  }
+  
+  public void removeLayoutListener(LayoutListener listener) {
+    layoutListeners.remove(listener);
+  }
+  
+  /**
+   * Sets how long, in milliseconds, the table waits after a change before
+   * telling the LayoutListeners; any further changes in that time restart
+   * the wait, and are reported together.  With 0, the default, they are
+   * told as soon as whatever made the change is finished.
+   */
+  public void setLayoutChangeDelay(int millis) {
+    this.layoutChangeDelay = millis;
+  }
+  
+  /**
+   * Installs the handle, by which we can drag the widget around, with the
+   * necessary drag listeners
+   */
+  private void addDragListeners(final Widget widget, DragBehavior handle) {    
+    
+    List listeners = DomUtils.newList();
+    
+    // a drag listener that listens for hovering and drops over 
+    // the DropTargets, either just ours or everything in the registry
+    DragDropListener.WidgetHandler widgetHandler = new DragDropListener.WidgetHandler() {
+      public void handleDropWidget(Widget t) {
+        dropDraggedWidget(t);
+      }
+
+      public void handleHoverWidget(Widget t) {
+        hoverOverDropTarget(t);
+      }
+    };
+    final DragDropListener dropListener = (registry == null)
+      ? new DragDropListener(dropTargets, widgetHandler)
+      : new DragDropListener(registry, widgetHandler);
+    
+    // a drag listener to listen for the start of a drag
+    listeners.add(new DragAwareWidget.DragListener() {
+      public void startDragging(int mouseX, int mouseY) {
+        dropListener.setHoverDwell(hoverDwell);
+        dropListener.setHoverHysteresis(hoverHysteresis);
+        draggedWidgetDropListener = dropListener;
+        startDraggingWidget(widget);
+      }
+      public void drag(int mouseX, int mouseY, int deltaX, int deltaY) {
+      }
+      public void endDragging(int mouseX, int mouseY, int deltaX, int deltaY) {
+      }
+    });
+
+    // a drag listener that moves the widget, or the panel holding
+    // the whole group if we're dragging a group
+    listeners.add(new DragMoveListener(widget) {
+      public void startDragging(int mouseX, int mouseY) {
+        this.widget = draggedProxy;
+        super.startDragging(mouseX, mouseY);
+      }
+    });
+    
+    listeners.add(dropListener);
+    
+    // a drag listener that scrolls the page near the window edges
+    if (autoScroll) {
+      listeners.add(new AutoScrollListener(handle));
+    }
+    
+    for (int i=0; i<listeners.size(); i++) {
+      handle.addDragListener((DragAwareWidget.DragListener) listeners.get(i));
+    }
+    widgetListenersMap.put(widget, listeners);
+  }
+  
+  /**
+   * Returns the DragBehavior of the argument handle, or, if there's no
+   * handle, one attached to the widget itself, which is detached again
+   * once the widget leaves the table
+   */
+  private DragBehavior getDragBehavior(Widget widget, DragAwareWidget handle) {
+    if (handle != null) {
+      return handle.getDragBehavior();
+    }
+    DragBehavior behavior = DragBehavior.attach(widget);
+    if (!attachedHandles.contains(behavior)) {
+      attachedHandles.add(behavior);
+    }
+    return behavior;
+  }
+  
+  /**
+   * Makes the widget draggable by the handle, and keeps track of it
+   */
+  private void adoptHandle(Widget widget, DragBehavior handle) {
+    if (dragThreshold >= 0) {
+      handle.setDragThreshold(dragThreshold);
+    }
+    addDragListeners(widget, handle);
+    widgetHandleMap.put(widget, handle);
+    if (widget instanceof WidgetPlaceholder) {
+      placeholders.add(widget);
+      listenForScrolling(isAttached());
+      scheduleMaterializeVisibleWidgets();
+    }
+  }
+  
+  /**
+   * Forgets everything about a widget that has left this table for
+   * somewhere else, including the drag listeners on its handle, and
+   * detaches the handle if this table attached it
+   */
+  private void forgetWidget(Widget widget) {
+    DragBehavior handle = (DragBehavior) widgetHandleMap.get(widget);
+    forgetWidget(widget, null);
+    if (handle != null && attachedHandles.remove(handle)) {
+      handle.detach();
+    }
+  }
+  
+  /**
+   * Forgets everything about a widget that is moving to newTable, which
+   * takes over detaching its handle if this table attached it
+   */
+  private void forgetWidget(Widget widget, ArrangeableTable newTable) {
+    arrangement.forgetWidget(widget);
+    if (placeholders.remove(widget)) {
+      listenForScrolling(isAttached());
+    }
+    setSelected(widget, false);
+    
+    DragBehavior handle = (DragBehavior) widgetHandleMap.remove(widget);
+    List listeners = (List) widgetListenersMap.remove(widget);
+    if (handle != null && listeners != null) {
+      for (int i=0; i<listeners.size(); i++) {
+        handle.removeDragListener((DragAwareWidget.DragListener) listeners.get(i));
+      }
+    }
+    if (newTable != null && attachedHandles.remove(handle)) {
+      newTable.attachedHandles.add(handle);
+    }
+  }
+
+  /**
+   * Creates the real widgets of the placeholders about to be dragged:
+   * the argument widget, and the rest of the selection in a group drag.
+   * Returns the widget to drag in place of the argument.
+   */
+  private Widget materializeForDrag(Widget widget) {
+    if (selectedWidgets.size() > 1 && isSelected(widget)) {
+      List members = DomUtils.newList();
+      members.addAll(selectedWidgets);
+      for (int i=0; i<members.size(); i++) {
+        if (members.get(i) != widget && members.get(i) instanceof WidgetPlaceholder) {
+          materialize((WidgetPlaceholder) members.get(i));
+        }
+      }
+    }
+    
+    if (widget instanceof WidgetPlaceholder) {
+      Widget realWidget = replacePlaceholder((WidgetPlaceholder) widget);
+      if (realWidget != null) {
+        draggedPlaceholder = (WidgetPlaceholder) widget;
+        placeholders.remove(widget);
+        listenForScrolling(isAttached());
+        widget = realWidget;
+      }
+    }
+    return widget;
+  }
+
+  /**
+   * Prepares the widget for drag.
+   */
+  private void startDraggingWidget(Widget widget) {
+    widget = materializeForDrag(widget);
+    if (selectedWidgets.size() > 1 && isSelected(widget)) {
+      startDraggingGroup(widget);
+      return;
+    }
+    
     // we're going to create a shadowWidget, which is going to be placed in the
     // cell that this widget will be dropped into.  As the widget is dragged
     // around, then, the shadowWidget is a "shadow" of where the widget
     // will be.  Basically, we need the shadowWidget there because the table
     // cell's border freaks out when its content becomes absolutely positioned.
-    shadowWidget = new SimplePanel();
-    shadowWidget.addStyleName(shadowWidgetStyleName);
-    shadowWidget.setHeight(widget.getOffsetHeight() + "px");
-    shadowWidget.setWidth(widget.getOffsetWidth() + "px");
-    
-    styleWidgetForDrag(widget);
+    shadowWidget = createShadowWidget(widget.getOffsetWidth(), widget.getOffsetHeight());
     
     Position curPos = findWidget(widget);
+    Span span = getSpan(widget);
+    if (dragGhost) {
+      draggedProxy = createGhost(widget);
+      parkWidget(widget);
+    } else {
+      styleWidgetForDrag(widget);
+      this.removeWithoutCompacting(widget);
+      draggedProxy = widget;
+    }
 
     // put the shadow widget into the table
-    setWidget(shadowWidget, curPos);
+    setWidget(shadowWidget, curPos, span.rows, span.cols);
+    
+    RootPanel.get().add(draggedProxy);
+    
+    draggedWidget = widget;
+    shadowTable = this;
+    if (registry != null) {
+      registry.setDraggedWidget(widget);
+    }
+  }
+  
+  /**
+   * Prepares all the selected widgets to be dragged together, by the
+   * argument widget.  Each widget leaves a shadow in its cell, and is moved
+   * into a single absolutely-positioned panel that follows the mouse.
+   */
+  private void startDraggingGroup(Widget widget) {
+    Position anchorPosition = findWidget(widget);
+    int size = selectedWidgets.size();
+    
+    // measure everything before we start moving things around, so
+    // the browser doesn't have to lay out the page for each widget
+    int[] lefts = new int[size];
+    int[] tops = new int[size];
+    int[] widths = new int[size];
+    int[] heights = new int[size];
+    int minLeft = Integer.MAX_VALUE;
+    int minTop = Integer.MAX_VALUE;
+    int maxRight = Integer.MIN_VALUE;
+    int maxBottom = Integer.MIN_VALUE;
+    for (int i=0; i<size; i++) {
+      Widget member = (Widget) selectedWidgets.get(i);
+      lefts[i] = member.getAbsoluteLeft();
+      tops[i] = member.getAbsoluteTop();
+      widths[i] = member.getOffsetWidth();
+      heights[i] = member.getOffsetHeight();
+      minLeft = Math.min(minLeft, lefts[i]);
+      minTop = Math.min(minTop, tops[i]);
+      maxRight = Math.max(maxRight, lefts[i] + widths[i]);
+      maxBottom = Math.max(maxBottom, tops[i] + heights[i]);
+    }
+    
+    AbsolutePanel groupPanel = new AbsolutePanel();
+    groupPanel.setWidth((maxRight - minLeft) + "px");
+    groupPanel.setHeight((maxBottom - minTop) + "px");
+    
+    groupWidgets = DomUtils.newList();
+    groupShadows = DomUtils.newList();
+    groupOffsets = DomUtils.newList();
+    groupOldWidths = DomUtils.newList();
+    groupOldHeights = DomUtils.newList();
+    for (int i=0; i<size; i++) {
+      Widget member = (Widget) selectedWidgets.get(i);
+      Position position = findWidget(member);
+      Span span = getSpan(member);
+      SimplePanel shadow = createShadowWidget(widths[i], heights[i]);
+      
+      groupWidgets.add(member);
+      groupShadows.add(shadow);
+      groupOffsets.add(new Position(
+          position.getRow() - anchorPosition.getRow(),
+          position.getCol() - anchorPosition.getCol()));
+      groupOldWidths.add(DOM.getStyleAttribute(member.getElement(), "width"));
+      groupOldHeights.add(DOM.getStyleAttribute(member.getElement(), "height"));
+      
+      this.removeWithoutCompacting(member);
+      setWidget(shadow, position, span.rows, span.cols);
+      if (member == widget) {
+        shadowWidget = shadow;
+      }
+      
+      member.setWidth(widths[i] + "px");
+      member.setHeight(heights[i] + "px");
+      groupPanel.add(member, lefts[i] - minLeft, tops[i] - minTop);
+    }
     
-    RootPanel.get().add(widget);
+    DOM.setStyleAttribute(groupPanel.getElement(), "position", "absolute");
+    DOM.setStyleAttribute(groupPanel.getElement(), "left", minLeft + "px");
+    DOM.setStyleAttribute(groupPanel.getElement(), "top", minTop + "px");
+    RootPanel.get().add(groupPanel);
     
     draggedWidget = widget;
+    draggedProxy = groupPanel;
+    shadowTable = this;
+  }
+  
+  /**
+   * Creates a shadow to hold the place of a dragged widget of the
+   * argument size
+   */
+  private SimplePanel createShadowWidget(int width, int height) {
+    SimplePanel shadow = shadowPool.isEmpty() 
+      ? new SimplePanel() : (SimplePanel) shadowPool.remove(shadowPool.size() - 1);
+    shadow.setStyleName(shadowWidgetStyleName);
+    shadow.setHeight(height + "px");
+    shadow.setWidth(width + "px");
+    return shadow;
+  }
+  
+  /**
+   * Creates the ghost of a widget, which stands in for it under the mouse.
+   * It has the same size, position and style names as the widget, and
+   * nothing inside.
+   */
+  private Widget createGhost(Widget widget) {
+    SimplePanel ghost = new SimplePanel();
+    ghost.setStyleName(widget.getStyleName());
+    ghost.addStyleName(ghostStyleName);
+    
+    Element elem = ghost.getElement();
+    DOM.setStyleAttribute(elem, "left", widget.getAbsoluteLeft() + "px");
+    DOM.setStyleAttribute(elem, "top", widget.getAbsoluteTop() + "px");
+    DOM.setStyleAttribute(elem, "width", widget.getOffsetWidth() + "px");
+    DOM.setStyleAttribute(elem, "height", widget.getOffsetHeight() + "px");
+    DOM.setStyleAttribute(elem, "position", "absolute");
+    return ghost;
+  }
+  
+  /**
+   * Takes a widget out of its cell while its ghost is being dragged.  The
+   * widget stays a child of this table, so it isn't detached; only its
+   * element moves, into a hidden element of the same size, so its content
+   * doesn't need to be laid out again.
+   */
+  private void parkWidget(Widget widget) {
+    Element parkingElement = getParkingElement();
+    DOM.setStyleAttribute(parkingElement, "width", widget.getOffsetWidth() + "px");
+    DOM.setStyleAttribute(parkingElement, "height", widget.getOffsetHeight() + "px");
+    
+    arrangement.liftWidget(widget);
+    DOM.appendChild(parkingElement, widget.getElement());
+  }
+  
+  /**
+   * Returns a hidden element to keep the elements of lifted widgets in
+   */
+  private Element getParkingElement() {
+    if (parkingElement == null) {
+      parkingElement = DOM.createDiv();
+      DOM.setStyleAttribute(parkingElement, "position", "absolute");
+      DOM.setStyleAttribute(parkingElement, "visibility", "hidden");
+      DOM.setStyleAttribute(parkingElement, "left", "0px");
+      DOM.setStyleAttribute(parkingElement, "top", "0px");
+      DOM.appendChild(RootPanel.getBodyElement(), parkingElement);
+    }
+    return parkingElement;
+  }
+  
+  /**
+   * Puts the thing that followed the mouse around to rest, once the
+   * draggedWidget has been dropped
+   */
+  private void finishDraggingProxy() {
+    if (draggedProxy != draggedWidget) {
+      draggedProxy.removeFromParent();
+    } else {
+      styleWidgetForDrop(draggedWidget, oldWidth, oldHeight);
+    }
+  }
+  
+  /**
+   * Returns true if the widget is the shadow of a widget being dragged
+   */
+  private boolean isShadowWidget(Widget widget) {
+    if (groupShadows != null) {
+      return groupShadows.contains(widget);
+    }
+    return widget == shadowWidget;
   }
 
   /**
-   * Drops the dragged widget
+   * Drops the dragged widget onto the argument drop target
    */
-  private void dropDraggedWidget() {
-    // remove the shadowWidget from the table, and insert the widget back
-    // where the shadowWidget currently is
-    Position position = findWidget(shadowWidget);
-    this.removeWithoutCompacting(shadowWidget);
+  private void dropDraggedWidget(Widget target) {
+    flushDeferredLayout();
+    beginRearrange();
+    
+    DragDropListener.WidgetHandler foreignHandler = 
+      (registry == null || target == null) ? null : registry.getWidgetHandler(target);
+    
+    ArrangeableTable holder = shadowTable;
+    ArrangeableTable lastShadowTable = shadowTable;
+    if (groupWidgets != null) {
+      holder = this;
+    } else if (foreignHandler != null) {
+      holder = null;
+    }
+    
+    if (groupWidgets != null) {
+      dropDraggedGroup();
+    } else if (foreignHandler != null) {
+      // hand the widget over to whoever owns the plain drop target
+      shadowPool.add(shadowTable.releaseShadow());
+      finishDraggingProxy();
+      draggedWidget.removeFromParent();
+      forgetWidget(draggedWidget);
+      foreignHandler.handleDropWidget(target);
+    } else {
+      // remove the shadowWidget from the table holding it, and insert the
+      // widget there where the shadowWidget currently is
+      Position position = shadowTable.findWidget(shadowTable.shadowWidget);
+      shadowTable.removeWithoutCompacting(shadowTable.shadowWidget);
+      shadowTable.arrangement.forgetWidget(shadowTable.shadowWidget);
+      shadowPool.add(shadowTable.shadowWidget);
+      shadowTable.shadowWidget = null;
 
-    styleWidgetForDrop(draggedWidget);
-    this.setWidget(position.getRow(), position.getCol(), draggedWidget);
+      finishDraggingProxy();
+      if (shadowTable == this) {
+        this.setWidget(position.getRow(), position.getCol(), draggedWidget);
+      } else {
+        // the widget is moving to another table, which will take care of
+        // dragging it from now on
+        DragBehavior handle = (DragBehavior) widgetHandleMap.get(draggedWidget);
+        Span span = getSpan(draggedWidget);
+        forgetWidget(draggedWidget, shadowTable);
+        shadowTable.beginRearrange();
+        shadowTable.setWidget(draggedWidget, handle, position, span.rows, span.cols);
+        shadowTable.arrangement.removeEmptyRowsAndColumnsFromFringes();
+        shadowTable.arrangement.compactWidgets();
+        shadowTable.endRearrange();
+      }
+    }
+    
+    if (registry != null) {
+      registry.setDraggedWidget(null);
+      registry.invalidate();
+    }
     
     shadowWidget = null;
+    shadowTable = null;
+    hoveredForeignTarget = null;
     draggedWidget = null;
+    draggedProxy = null;
+    draggedWidgetDropListener = null;
     
     // remove empty rows at the bottom for the table
-    removeEmptyRowsAndColumnsFromFringes();
-    compactWidgets();
+    arrangement.removeEmptyRowsAndColumnsFromFringes();
+    arrangement.compactWidgets();
+    endRearrange();
+    
+    // the placeholder the drag started from isn't needed any more
+    if (draggedPlaceholder != null) {
+      forgetWidget(draggedPlaceholder);
+      draggedPlaceholder = null;
+    }
+    if (holder != null) {
+      holder.scheduleMaterializeVisibleWidgets();
+    }
+    scheduleMaterializeVisibleWidgets();
+    
+    // widgets still squeezed out at the drop are gone for good
+    for (int i=0; i<overflowingTables.size(); i++) {
+      ArrangeableTable table = (ArrangeableTable) overflowingTables.get(i);
+      table.beginRearrange();
+      table.arrangement.restoreOverflowedWidgets(true);
+      table.endRearrange();
+      table.releaseOverflowedWidgets();
+      table.scheduleLayoutChanges();
+    }
+    overflowingTables.clear();
+    
+    // the drag is over, so its changes can be told
+    scheduleLayoutChanges();
+    if (lastShadowTable != null && lastShadowTable != this) {
+      lastShadowTable.scheduleLayoutChanges();
+    }
   }
 
   /**
-   * Hovers the dragged widget over the argument DropTarget, which will 
-   * move the shadowWidget into that position
+   * Replaces each shadow in a group drag with the widget it stands for
    */
-  private void hoverOverDropTarget(DropTarget target) {
-    if (target != null) {
-      // move the shadow widget into the argument table cell
-      moveShadowWidgetAndCompact(target.getPosition());          
+  private void dropDraggedGroup() {
+    for (int i=0; i<groupWidgets.size(); i++) {
+      Widget member = (Widget) groupWidgets.get(i);
+      SimplePanel shadow = (SimplePanel) groupShadows.get(i);
+      Position position = findWidget(shadow);
+      this.removeWithoutCompacting(shadow);
+      arrangement.forgetWidget(shadow);
+      shadowPool.add(shadow);
+      
+      styleWidgetForDrop(member, 
+          (String) groupOldWidths.get(i), (String) groupOldHeights.get(i));
+      this.setWidget(member, position);
     }
+    
+    // the group panel is empty now
+    draggedProxy.removeFromParent();
+    
+    groupWidgets = null;
+    groupShadows = null;
+    groupOffsets = null;
+    groupOldWidths = null;
+    groupOldHeights = null;
   }
   
   /**
-   * Moves the shadow widget into a position, and compacts the table
+   * Hovers the dragged widget over the argument drop target, which will 
+   * move the shadowWidget into that position if it's a table cell.  With
+   * deferredLayout, that happens later, and only if the drag hasn't moved
+   * on to another target by then.
    */
-  private void moveShadowWidgetAndCompact(Position newPosition) {
-    Position oldPosition = findWidget(shadowWidget); 
-    
-    // if there's no move to be done, short circuit and quit
-    if (oldPosition.equals(newPosition)) {
+  private void hoverOverDropTarget(Widget target) {
+    if (!deferredLayout) {
+      layOutHover(target, false);
       return;
     }
     
-    // first, move panel into the new position
-    moveWidget(shadowWidget, oldPosition, newPosition);
+    pendingHoverTarget = target;
+    layoutGeneration++;
+    if (!hoverPending) {
+      hoverPending = true;
+      DeferredCommand.addCommand(new Command() {
+        public void execute() {
+          if (hoverPending) {
+            hoverPending = false;
+            layOutHover(pendingHoverTarget, true);
+          }
+        }
+      });
+    }
+  }
+  
+  /**
+   * Finishes rearranging the table for the last target hovered over, 
+   * before a drop
+   */
+  private void flushDeferredLayout() {
+    layoutGeneration++;
+    if (hoverPending) {
+      hoverPending = false;
+      layOutHover(pendingHoverTarget, false);
+    }
     
-    // compact the table
-    compactWidgets();
+    // the table wasn't being rearranged as the drag went along, so
+    // rearrange it now, in full
+    if (previewTarget != null) {
+      DropTarget target = previewTarget;
+      setPreviewTarget(null, false);
+      rearrangeForHover(target, false, true);
+    }
   }
   
   /**
-   * Compacts the table, vertically or horizontally, if 
-   * compactVertically or compactHorizontally were set to true
-   *
+   * Rearranges the tables for the dragged widget hovering over the target.
+   * If incremental, a table the shadow moves within is compacted later, 
+   * by a CompactionCommand.  With a hoverBudget, only as much of that is
+   * done as the budget allows.
    */
-  private void compactWidgets() {
-    if (compactVertically) {
-      compactVertically();
+  private void layOutHover(Widget target, boolean incremental) {
+    hoverOverForeignTarget(target);
+    
+    if (!(target instanceof DropTarget)) {
+      return;
+    }
+    if (hoverBudget <= 0) {
+      rearrangeForHover((DropTarget) target, incremental, true);
+      return;
     }
     
-    if (compactHorizontally) {
-      compactHorizontally();
+    double start = DomUtils.now();
+    if (hoverQuality >= HOVER_SHADOW_ONLY) {
+      setPreviewTarget((DropTarget) target, hoverQuality == HOVER_SHADOW_ONLY);
+    } else {
+      setPreviewTarget(null, false);
+      rearrangeForHover((DropTarget) target, incremental, hoverQuality == HOVER_FULL);
     }
+    adaptHoverQuality(DomUtils.now() - start);
   }
   
-  private void compactVertically() {
-    for (int r=0; r<getRowCount(); r++) {
-      for (int c=0; c<getColumnCount(); c++) {
-        if (!isCellEmpty(r, c)) {
-          Position newPosition = findTopMostEmptyPositionAbove(r, c);
-          if (newPosition != null) {
-            Position oldPosition = new Position(r, c);
-            Widget widget = getWidget(oldPosition);
-            if (!widget.equals(shadowWidget)) {
-              moveWidget(widget, oldPosition, newPosition);
-            }
-          }
-        }
-      }
+  /**
+   * Does less for each hover once a hover has cost more than the
+   * hoverBudget, and more again once there's room for it.  What a better
+   * quality cost when it was last tried is slowly forgotten, so that it's
+   * tried again now and then.
+   */
+  private void adaptHoverQuality(double cost) {
+    hoverCosts[hoverQuality] = cost;
+    if (cost > hoverBudget) {
+      hoverQuality = Math.min(hoverQuality + 1, HOVER_PAUSED);
+      return;
+    }
+    
+    for (int q=HOVER_FULL; q<hoverQuality; q++) {
+      hoverCosts[q] *= HOVER_COST_DECAY;
+    }
+    if (hoverQuality > HOVER_FULL && cost < hoverBudget / 2.0
+        && hoverCosts[hoverQuality - 1] <= hoverBudget) {
+      hoverQuality--;
     }
   }
-
-  private Position findTopMostEmptyPositionAbove(int row, int column) {
-    for (int r=0; r<row; r++) {
-      if (isCellEmpty(r, column)) {
-        return new Position(r, column);
-      }
+  
+  /**
+   * Adds the time a CompactionCommand spent compacting after a full hover
+   * to what that hover cost, and does less for each hover if that puts it
+   * over the hoverBudget
+   */
+  private void addCompactionCost(double cost) {
+    if (hoverBudget <= 0) {
+      return;
+    }
+    
+    hoverCosts[HOVER_FULL] += cost;
+    if (hoverQuality == HOVER_FULL && hoverCosts[HOVER_FULL] > hoverBudget) {
+      hoverQuality = HOVER_NO_COMPACTION;
     }
-    return null;
   }
   
-  private void compactHorizontally() {
-    for (int r=0; r<getRowCount(); r++) {
-      for (int c=0; c<getColumnCount(); c++) {
-        if (!isCellEmpty(r, c)) {
-          Position newPosition = findLeftMostEmptyPositionToLeftOf(r, c);
-          if (newPosition != null) {
-            Position oldPosition = new Position(r, c);
-            Widget widget = getWidget(oldPosition);
-            if (!widget.equals(shadowWidget)) {
-              moveWidget(widget, oldPosition, newPosition);
-            }
-          }
-        }
-      }
+  /**
+   * Remembers the cell hovered over while the table isn't being
+   * rearranged, to rearrange it for that cell at the drop, and highlights
+   * the cell if highlight is true
+   */
+  private void setPreviewTarget(DropTarget target, boolean highlight) {
+    if (previewTarget != null) {
+      previewTarget.removeStyleName(shadowWidgetStyleName);
+    }
+    previewTarget = target;
+    if (target != null && highlight) {
+      target.addStyleName(shadowWidgetStyleName);
     }
   }
   
-  private Position findLeftMostEmptyPositionToLeftOf(int row, int col) {
-    for (int c=0; c<col; c++) {
-      if (isCellEmpty(row, c)) {
-        return new Position(row, c);
+  /**
+   * Moves the shadow to the target cell, squeezing away whatever is in
+   * the way, and compacts the table if compact is true
+   */
+  private void rearrangeForHover(DropTarget dropTarget, boolean incremental, boolean compact) {
+    ArrangeableTable table = dropTarget.getTable();
+    int cellMoves = table.arrangement.getCellMoves();
+    if (table == shadowTable && (incremental || !compact)) {
+      if (table.moveShadowWidget(dropTarget.getPosition()) && compact) {
+        DeferredCommand.addCommand(new CompactionCommand(table));
       }
+      table.arrangement.restoreOverflowedWidgets(false);
+    } else if (table == shadowTable) {
+      // move the shadow widget into the argument table cell
+      table.moveShadowWidgetAndCompact(dropTarget.getPosition());
+      table.arrangement.restoreOverflowedWidgets(true);
+    } else if (groupWidgets == null) {
+      // move the shadow widget into another table, unless it's full
+      ArrangeableTable oldTable = shadowTable;
+      Span span = oldTable.getSpan(oldTable.shadowWidget);
+      oldTable.arrangement.beginUndoable();
+      SimplePanel shadow = oldTable.releaseShadow();
+      if (!table.acceptShadow(shadow, dropTarget.getPosition(), span, compact)) {
+        oldTable.arrangement.undo();
+        oldTable.shadowWidget = shadow;
+        return;
+      }
+      oldTable.arrangement.endUndoable();
+      oldTable.arrangement.restoreOverflowedWidgets(true);
+      noteOverflowing(oldTable);
+      shadowTable = table;
+    } else {
+      return;
     }
-    return null;
-  } 
-
+    noteOverflowing(table);
+    
+    // if the cells have moved around, the drop listener has to measure
+    // them again.  A shadow taken in from another table always moves them.
+    if (table.arrangement.getCellMoves() != cellMoves) {
+      draggedWidgetDropListener.invalidateTargetCache();
+    }
+  }
+  
   /**
-   * Moves a widget into newPosition from oldPosition to newPosition.  If there's
-   * already a widget in newPosition, that widget is pushed away according to
-   * the SqueezeStrategy.
+   * Remembers that the table has widgets squeezed out of it by this drag,
+   * to be handed to its OverflowHandler at the drop
    */
-  private void moveWidget(Widget widget, Position oldPosition, Position newPosition) {
-    ensurePositionExists(newPosition);
-    
-    int newRow = newPosition.getRow();
-    int newCol = newPosition.getCol();
-
-    // the order is important!  First, remove the widget we want to move
-    this.removeWithoutCompacting(widget);
-
-    // next, save the exisiting widget in newPosition
-    Widget widgetToPushAway = this.getWidget(newRow, newCol);
-    
-    // now we can go ahead and place the widget into the newPosition
-    this.setWidget(newRow, newCol, widget);
-    
-    if (widgetToPushAway != null) {
-      // if there was an existing widget, then ask the squeezeStrategy where to put
-      // it and move it there
-      Position squeezedPosition = squeezeStrategy.getSqueezedToPosition(this, oldPosition, newPosition);
-      moveWidget(widgetToPushAway, newPosition, squeezedPosition);
+  private void noteOverflowing(ArrangeableTable table) {
+    if (table.arrangement.hasOverflowedWidgets() && !overflowingTables.contains(table)) {
+      overflowingTables.add(table);
     }
   }
   
   /**
-   * Resizes the grid so that newPosition fits within its boundaries
+   * Keeps the handlers of plain drop targets in the registry informed
+   * of whether we're hovering over them
    */
-  private void ensurePositionExists(Position newPosition) {
-    if (newPosition.getRow() >= getRowCount()) {
-      resizeRows(newPosition.getRow() + 1);
+  private void hoverOverForeignTarget(Widget target) {
+    if (registry == null || groupWidgets != null) {
+      return;
+    }
+    
+    if (hoveredForeignTarget != null) {
+      registry.getWidgetHandler(hoveredForeignTarget).handleHoverWidget(null);
+      hoveredForeignTarget = null;
     }
     
-    if (newPosition.getCol() >= getColumnCount()) {
-      resizeColumns(newPosition.getCol() + 1);
+    DragDropListener.WidgetHandler foreignHandler = 
+      (target == null) ? null : registry.getWidgetHandler(target);
+    if (foreignHandler != null) {
+      hoveredForeignTarget = target;
+      foreignHandler.handleHoverWidget(target);
     }
   }
-
+  
   /**
-   * Removes the widget from the table without compacting the table
+   * Takes the shadow of a widget dragged out of this table into
+   * another one, and compacts the table
    */
-  private boolean removeWithoutCompacting(Widget widget) {
-    Position pos = findWidget(widget);
-    boolean rc = super.remove(widget);
-    if (rc) {
-      widgetPositionMap.remove(widget);
-      this.setHTML(pos.getRow(), pos.getCol(), "&nbsp;");
-    }
-    return rc;
+  private SimplePanel releaseShadow() {
+    beginRearrange();
+    SimplePanel shadow = shadowWidget;
+    this.removeWithoutCompacting(shadow);
+    arrangement.forgetWidget(shadow);
+    shadowWidget = null;
+    
+    arrangement.compactWidgets();
+    arrangement.removeEmptyRowsAndColumnsFromFringes();
+    endRearrange();
+    scheduleLayoutChanges();
+    return shadow;
   }
   
   /**
-   * Returns true if there's an empty cell in the same column in a
-   * row above (row, col)
+   * Puts the shadow of a widget dragged in from another table into
+   * position, squeezing away whatever is there, and compacts the table if
+   * compact is true.  Returns false, and leaves the table as it was, if
+   * that would grow the table past its maximum size.
    */
-  private boolean isRoomAbove(Position position) {
-    int row = position.getRow();
-    int col = position.getCol();
-    for (int r=row-1; r>=0; r--) {
-      if (isCellEmpty(r, col)) {
-        return true;
+  private boolean acceptShadow(SimplePanel shadow, Position position, Span span, boolean compact) {
+    beginRearrange();
+    arrangement.beginUndoable();
+    try {
+      List positions = DomUtils.newList();
+      List widgetsToPushAway = arrangement.liftWidgetsOverlapping(position, span, positions);
+      
+      shadowWidget = shadow;
+      this.setWidget(shadow, position, span.rows, span.cols);
+      
+      for (int i=0; i<widgetsToPushAway.size(); i++) {
+        arrangement.placeSqueezedWidget((Widget) widgetsToPushAway.get(i), position, (Position) positions.get(i));
       }
+    } catch (TableFullException e) {
+      arrangement.undo();
+      shadowWidget = null;
+      endRearrange();
+      return false;
     }
-    return false;
+    arrangement.endUndoable();
+    if (compact) {
+      arrangement.compactWidgets();
+    }
+    endRearrange();
+    return true;
   }
   
   /**
-   * Returns true if there's an empty cell in the same column in a
-   * row above (row, col)
+   * Moves the shadow widget into a position, and compacts the table
    */
-  private boolean isRoomToLeft(Position position) {
-    int row = position.getRow();
-    int col = position.getCol();
-    for (int c=col-1; c>=0; c--) {
-      if (isCellEmpty(row, c)) {
-        return true;
+  private void moveShadowWidgetAndCompact(Position newPosition) {
+    beginRearrange();
+    if (moveShadowWidget(newPosition)) {
+      arrangement.compactWidgets();
+    }
+    endRearrange();
+  }
+  
+  /**
+   * Moves the shadow widget into a position, without compacting.  Returns
+   * false if it's already there, or if the move would grow the table past
+   * its maximum size, in which case nothing is moved.
+   */
+  private boolean moveShadowWidget(Position newPosition) {
+    Position oldPosition = findWidget(shadowWidget); 
+    
+    // if there's no move to be done, short circuit and quit
+    if (oldPosition.equals(newPosition)) {
+      return false;
+    }
+    
+    beginRearrange();
+    arrangement.beginUndoable();
+    try {
+      if (groupShadows != null) {
+        moveShadowGroup(oldPosition, newPosition);
+      } else {
+        arrangement.moveWidget(shadowWidget, oldPosition, newPosition);
       }
+    } catch (TableFullException e) {
+      arrangement.undo();
+      endRearrange();
+      return false;
     }
-    return false;
+    arrangement.endUndoable();
+    endRearrange();
+    return true;
   }
   
-  private void removeEmptyRowsAndColumnsFromFringes() {
-    removeEmptyRowsFromBottom();
-    removeEmptyColumnsFromRight();
+  /**
+   * Remembers where all the widgets are before rearranging the table, so
+   * they can be animated to where they end up when endRearrange() is
+   * called.  Where the last rearrangement left them is reused, so only
+   * widgets that haven't been measured yet are measured.
+   */
+  private void beginRearrange() {
+    animator.begin(this, arrangement.getWidgets());
+  }
+  
+  private void endRearrange() {
+    animator.end();
   }
   
   /**
-   * Remove empty rows at bottom of the table
+   * Moves all the shadows in a group drag at once, so that the shadow of
+   * the draggedWidget goes from oldPosition to newPosition, and the other
+   * shadows keep their places relative to it.  Widgets in the way are
+   * squeezed to where the SqueezeStrategy says if that cell is free, or
+   * else to the next empty cell.
    */
-  private void removeEmptyRowsFromBottom() {
-    int rowsToRemove = 0;
-    for (int r=getRowCount()-1; r>=minRows; r--) {
-      if (!isRowEmpty(r)) {
-        break;
-      }
+  private void moveShadowGroup(Position oldPosition, Position newPosition) {
+    // keep the whole group within the table
+    int anchorRow = newPosition.getRow();
+    int anchorCol = newPosition.getCol();
+    for (int i=0; i<groupOffsets.size(); i++) {
+      Position offset = (Position) groupOffsets.get(i);
+      anchorRow = Math.max(anchorRow, -offset.getRow());
+      anchorCol = Math.max(anchorCol, -offset.getCol());
+    }
+    if (anchorRow == oldPosition.getRow() && anchorCol == oldPosition.getCol()) {
+      return;
+    }
+    
+    // take all the shadows out first, so that they never squeeze each other
+    List oldPositions = DomUtils.newList();
+    for (int i=0; i<groupShadows.size(); i++) {
+      Widget shadow = (Widget) groupShadows.get(i);
+      oldPositions.add(findWidget(shadow));
+      arrangement.liftWidget(shadow);
+    }
+    
+    // next, take out the widgets that are in the way, remembering where
+    // they were and which shadow displaced them
+    List newPositions = DomUtils.newList();
+    List displacedWidgets = DomUtils.newList();
+    List displacedFrom = DomUtils.newList();
+    List displacedBy = DomUtils.newList();
+    for (int i=0; i<groupOffsets.size(); i++) {
+      Position offset = (Position) groupOffsets.get(i);
+      Position position = new Position(anchorRow + offset.getRow(), anchorCol + offset.getCol());
+      newPositions.add(position);
       
-      rowsToRemove++;
+      List widgetsToPushAway = arrangement.liftWidgetsOverlapping(
+          position, getSpan((Widget) groupShadows.get(i)), displacedFrom);
+      for (int j=0; j<widgetsToPushAway.size(); j++) {
+        displacedWidgets.add(widgetsToPushAway.get(j));
+        displacedBy.add(oldPositions.get(i));
+      }
     }
     
-    if (rowsToRemove > 0) {
-      resizeRows(getRowCount() - rowsToRemove);
+    // now place the shadows
+    for (int i=0; i<groupShadows.size(); i++) {
+      setWidget((Widget) groupShadows.get(i), (Position) newPositions.get(i));
+    }
+    
+    // and finally find new homes for the displaced widgets
+    for (int i=0; i<displacedWidgets.size(); i++) {
+      arrangement.placeSqueezedWidget((Widget) displacedWidgets.get(i), 
+          (Position) displacedBy.get(i), (Position) displacedFrom.get(i));
     }
   }
   
   /**
-   * Removes empty columns to the right of the table
+   * Hands the widgets still parked at the drop to the OverflowHandler
    */
-  private void removeEmptyColumnsFromRight() {
-    int colsToRemove = 0;
-    for (int c=getColumnCount()-1; c>=minCols; c--) {
-      if (!isColEmpty(c)) {
-        break;
-      }
-      
-      colsToRemove++;
+  private void releaseOverflowedWidgets() {
+    List widgets = arrangement.takeOverflowedWidgets();
+    for (int i=0; i<widgets.size(); i++) {
+      Widget widget = (Widget) widgets.get(i);
+      DragBehavior handle = (DragBehavior) widgetHandleMap.get(widget);
+      this.removeWithoutCompacting(widget);
+      forgetWidget(widget);
+      overflowHandler.widgetOverflowed(this, widget, handle);
     }
+  }
+  
+  /**
+   * Returns the Span of the argument widget
+   */
+  private Span getSpan(Widget widget) {
+    return arrangement.getSpan(widget);
+  }
+  
+  /**
+   * Makes the cell at position span rowSpan rows and colSpan columns,
+   * hiding the cells it covers; or, if spanning is false, undoes that.
+   */
+  private void setCellSpan(Position position, int rowSpan, int colSpan, boolean spanning) {
+    int row = position.getRow();
+    int col = position.getCol();
     
-    if (colsToRemove > 0) {
-      resizeColumns(getColumnCount() - colsToRemove);
+    DomUtils.setCellAttribute(this, row, col, "rowSpan", spanning ? String.valueOf(rowSpan) : "1");
+    DomUtils.setCellAttribute(this, row, col, "colSpan", spanning ? String.valueOf(colSpan) : "1");
+    for (int r=row; r<row+rowSpan; r++) {
+      for (int c=col; c<col+colSpan; c++) {
+        if (r == row && c == col) {
+          continue;
+        }
+        DomUtils.setCellStyleAttribute(this, r, c, "display", spanning ? "none" : "");
+      }
+    }
+  }
+  
+  /**
+   * Returns true if the widget is a child of this table that has been
+   * lifted out of its cell
+   */
+  private boolean isLifted(Widget widget) {
+    return widget.getParent() == this && findWidget(widget) == null;
+  }
+  
+  /**
+   * Moves the element of a lifted widget into the empty cell at position
+   */
+  private void placeLiftedWidget(Widget widget, Position position) {
+    Element td = getCellFormatter().getElement(position.getRow(), position.getCol());
+    DOM.setInnerText(td, "");
+    DOM.appendChild(td, widget.getElement());
+  }
+  
+  /**
+   * Removes the widget from the table without compacting the table
+   */
+  private boolean removeWithoutCompacting(Widget widget) {
+    Position pos = findWidget(widget);
+    boolean rc = super.remove(widget);
+    if (rc && pos != null) {
+      Span span = getSpan(widget);
+      arrangement.removeWidget(widget);
+      if (!span.isSingleCell()) {
+        setCellSpan(pos, span.rows, span.cols, false);
+      }
+      DOM.setInnerText(getCellFormatter().getElement(pos.getRow(), pos.getCol()), "\u00a0");
     }
+    return rc;
+  }
+  
+  /**
+   * Returns true if there's an empty cell in the same column in a
+   * row above position
+   */
+  private boolean isRoomAbove(Position position) {
+    return arrangement.isRoomAbove(position);
+  }
+  
+  /**
+   * Returns true if there's an empty cell in the same row in a column
+   * to the left of position
+   */
+  private boolean isRoomToLeft(Position position) {
+    return arrangement.isRoomToLeft(position);
   }
   
   /**
@@ -545,7 +2324,9 @@ public class ArrangeableTable extends Grid {
    */
   public void resizeRows(int rows) {
     super.resizeRows(rows);
-    fillDropTargets();
+    arrangement.setSize(getRowCount(), getColumnCount());
+    fillDropTargets(false);
+    scheduleLayoutChanges();
   }
 
   /**
@@ -554,57 +2335,65 @@ public class ArrangeableTable extends Grid {
    */
   public void resizeColumns(int cols) {
     super.resizeColumns(cols);
-    fillDropTargets();
+    arrangement.setSize(getRowCount(), getColumnCount());
+    animator.invalidate();
+    fillDropTargets(false);
+    scheduleLayoutChanges();
   }
   
   /**
-   * Clears and recreates the dropTargets list
+   * Brings the dropTargets list up to date with the cells of the table.
+   * Cells that were already in the list keep their DropTarget, so only
+   * new cells are sized, unless resize is true.
    */
-  private void fillDropTargets() {
+  private void fillDropTargets(boolean resize) {
+    // the drop listeners of our widgets hold on to the list itself, so
+    // we fill it again rather than replacing it
+    List oldTargets = DomUtils.newList();
+    oldTargets.addAll(dropTargets);
+    int oldRows = (dropTargetCols == 0) ? 0 : oldTargets.size() / dropTargetCols;
+    
     dropTargets.clear();
     for (int r=0; r<getRowCount(); r++) {
       for (int c=0; c<getColumnCount(); c++) {
-        DropTarget target = 
-          new DropTarget(
-              r, c, getCellFormatter().getElement(r, c), cellWidth, cellHeight);
-        dropTargets.add(target);
+        if (!resize && r < oldRows && c < dropTargetCols) {
+          dropTargets.add(oldTargets.get(r * dropTargetCols + c));
+        } else {
+          dropTargets.add(new DropTarget(
+              this, r, c, getCellFormatter().getElement(r, c), cellWidth, cellHeight));
+        }
       }
     }
+    dropTargetCols = getColumnCount();
   }
   
-  private boolean isRowEmpty(int row) {
-    for (int c=0; c<getColumnCount(); c++) {
-      if (!isCellEmpty(row, c)) {
-        return false;
-      }
-    }    
-    return true;
+  /**
+   * Returns the DropTarget for the cell at (row, col)
+   */
+  DropTarget getDropTarget(int row, int col) {
+    // a cell hidden under a spanning widget belongs to the widget's cell
+    Widget owner = arrangement.getWidgetCovering(row, col);
+    if (owner != null && !getSpan(owner).isSingleCell()) {
+      Position position = findWidget(owner);
+      row = position.getRow();
+      col = position.getCol();
+    }
+    return (DropTarget) dropTargets.get(row * getColumnCount() + col);
   }
   
-  private boolean isColEmpty(int col) {
-    for (int r=0; r<getRowCount(); r++) {
-      if (!isCellEmpty(r, col)) {
-        return false;
-      }
-    }    
-    return true;
+  /**
+   * Returns true if the cell at (row, col) is part of a widget spanning
+   * several cells, and so doesn't have the size of a single cell
+   */
+  boolean isSpannedCell(int row, int col) {
+    Widget widget = arrangement.getWidgetCovering(row, col);
+    return widget != null && !getSpan(widget).isSingleCell();
   }
   
   public boolean isCellPresent(int row, int col) {
     return row >= 0 && row < getRowCount() && col >= 0 && col < getColumnCount();
   }
 
-  /**
-   * Returns true if the cell at (row, col) doesn't have an existing widget
-   */
-  private boolean isCellEmpty(int row, int col) {
-    if (!isCellPresent(row, col)) {
-      return false;
-    }
-    
-    return this.getWidget(row, col) == null;
-  }
-  
   private void styleWidgetForDrag(final Widget widget) {
     oldWidth = DOM.getStyleAttribute(widget.getElement(), "width");
     oldHeight = DOM.getStyleAttribute(widget.getElement(), "height");
@@ -616,11 +2405,11 @@ public class ArrangeableTable extends Grid {
     DOM.setStyleAttribute(widget.getElement(), "position", "absolute");
   }
 
-  private void styleWidgetForDrop(final Widget widget) {
+  private void styleWidgetForDrop(final Widget widget, String width, String height) {
     DOM.setStyleAttribute(widget.getElement(), "position", "relative");
     DOM.setStyleAttribute(widget.getElement(), "left", "0px");
     DOM.setStyleAttribute(widget.getElement(), "top", "0px");
-    DOM.setStyleAttribute(widget.getElement(), "width", oldWidth);
-    DOM.setStyleAttribute(widget.getElement(), "height", oldHeight);
+    DOM.setStyleAttribute(widget.getElement(), "width", width);
+    DOM.setStyleAttribute(widget.getElement(), "height", height);
   }
 }
@@ -0,0 +1,177 @@
+package com.grapier.gwt.client.ui.dragdrop;
+
+import java.util.List;
+
+import com.google.gwt.user.client.ui.Widget;
+import com.grapier.gwt.client.util.DomUtils;
+import com.grapier.gwt.client.util.Position;
+
+/**
+ * A saved arrangement of an ArrangeableTable: the size of the table, and
+ * where each widget is, identified by a String key.  Layouts can be turned
+ * into a compact String with encode() and read back with decode(), so they
+ * can be saved and restored across page loads.
+ *
+ * The encoding is the table size followed by one entry per widget, with
+ * the position packed into a single number (row * columns + column):
+ *
+ *   rows,cols;key:packed;key:packed:rowSpan,colSpan;...
+ *
+ * The span is only written for widgets spanning more than one cell.
+ *
+ * @author chungwu
+ */
+public class ArrangeableTableLayout {
+
+  /**
+   * Gives the key a widget is saved under
+   */
+  public interface KeyProvider {
+    /**
+     * Returns the key of the widget; null if the widget should not be saved
+     */
+    public String getKey(Widget widget);
+  }
+
+  /**
+   * Gives the widget, and the handle to drag it by, saved under a key
+   */
+  public interface WidgetProvider {
+    /**
+     * Returns the widget saved under key; null if there isn't one any more
+     */
+    public Widget getWidget(String key);
+
+    /**
+     * Returns the handle by which to drag the widget saved under key;
+     * null to drag the widget by itself, without wrapping it in anything
+     */
+    public DragAwareWidget getHandle(String key);
+  }
+
+  private int rows;
+  private int cols;
+
+  // parallel lists with one element per widget
+
+  /**
+   * @gwt.typeArgs <java.lang.String>
+   */
+  private List keys;
+
+  /**
+   * @gwt.typeArgs <com.grapier.gwt.client.util.Position>
+   */
+  private List positions;
+
+  // the span of each widget, as Position(rowSpan, colSpan)
+  
+  /**
+   * @gwt.typeArgs <com.grapier.gwt.client.util.Position>
+   */
+  private List spans;
+
+  public ArrangeableTableLayout(int rows, int cols) {
+    this.rows = rows;
+    this.cols = cols;
+    this.keys = DomUtils.newList();
+    this.positions = DomUtils.newList();
+    this.spans = DomUtils.newList();
+  }
+
+  public int getRowCount() {
+    return rows;
+  }
+
+  public int getColumnCount() {
+    return cols;
+  }
+
+  public int size() {
+    return keys.size();
+  }
+
+  public String getKey(int index) {
+    return (String) keys.get(index);
+  }
+
+  public Position getPosition(int index) {
+    return (Position) positions.get(index);
+  }
+
+  public int getRowSpan(int index) {
+    return ((Position) spans.get(index)).getRow();
+  }
+
+  public int getColSpan(int index) {
+    return ((Position) spans.get(index)).getCol();
+  }
+
+  /**
+   * Adds a widget saved under key
+   */
+  public void add(String key, Position position, int rowSpan, int colSpan) {
+    keys.add(key);
+    positions.add(position);
+    spans.add(new Position(rowSpan, colSpan));
+  }
+
+  /**
+   * Returns the compact String form of this layout
+   */
+  public String encode() {
+    StringBuffer buffer = new StringBuffer();
+    buffer.append(rows).append(',').append(cols);
+    for (int i=0; i<size(); i++) {
+      Position position = getPosition(i);
+      buffer.append(';').append(escape(getKey(i)));
+      buffer.append(':').append(position.getRow() * cols + position.getCol());
+      if (getRowSpan(i) != 1 || getColSpan(i) != 1) {
+        buffer.append(':').append(getRowSpan(i)).append(',').append(getColSpan(i));
+      }
+    }
+    return buffer.toString();
+  }
+
+  /**
+   * Reads a layout from the String form returned by encode()
+   *
+   * @throws IllegalArgumentException if encoded isn't a valid layout
+   */
+  public static ArrangeableTableLayout decode(String encoded) {
+    try {
+      String[] entries = encoded.split(";");
+      int[] size = parsePair(entries[0]);
+      ArrangeableTableLayout layout = new ArrangeableTableLayout(size[0], size[1]);
+
+      for (int i=1; i<entries.length; i++) {
+        String[] parts = entries[i].split(":");
+        int packed = Integer.parseInt(parts[1]);
+        int[] span = (parts.length > 2) ? parsePair(parts[2]) : new int[] {1, 1};
+        layout.add(
+            unescape(parts[0]),
+            new Position(packed / size[1], packed % size[1]),
+            span[0], span[1]);
+      }
+      return layout;
+    } catch (RuntimeException e) {
+      throw new IllegalArgumentException("Not a valid layout: " + encoded);
+    }
+  }
+
+  private static int[] parsePair(String pair) {
+    String[] parts = pair.split(",");
+    return new int[] {Integer.parseInt(parts[0]), Integer.parseInt(parts[1])};
+  }
+
+  /**
+   * Escapes the characters we use as separators in a key
+   */
+  private static String escape(String key) {
+    return key.replaceAll("%", "%25").replaceAll(";", "%3B").replaceAll(":", "%3A");
+  }
+
+  private static String unescape(String key) {
+    return key.replaceAll("%3A", ":").replaceAll("%3B", ";").replaceAll("%25", "%");
+  }
+}
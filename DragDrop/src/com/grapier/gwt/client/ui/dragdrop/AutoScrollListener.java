@@ -0,0 +1,145 @@
+package com.grapier.gwt.client.ui.dragdrop;
+
+import com.google.gwt.user.client.Timer;
+import com.google.gwt.user.client.Window;
+import com.grapier.gwt.client.ui.dragdrop.DragAwareWidget.DragListener;
+import com.grapier.gwt.client.util.DomUtils;
+
+/**
+ * A DragListener that scrolls the page when a drag gets close to the
+ * edge of the browser window.  The closer the mouse is to the edge, the
+ * faster we scroll.
+ *
+ * We don't scroll on mouse events, since the mouse may be sitting still
+ * at the edge of the window; instead, while the mouse is in an edge zone,
+ * a Timer scrolls the page once every frame.  After each scroll, the
+ * DragBehavior is told how far the page has moved, so that its
+ * DragScrollListeners can adjust without measuring anything again.
+ *
+ * @author chungwu
+ */
+public class AutoScrollListener implements DragListener {
+
+  // how often we scroll while the mouse is in an edge zone; about once a frame
+  private static final int FRAME_INTERVAL = 20;
+
+  private DragBehavior handle;
+  private int edgeSize;
+  private int maxSpeed;
+  private int speedX;
+  private int speedY;
+  private Timer scrollTimer;
+  private boolean scrolling;
+
+  /**
+   * @param handle the DragAwareWidget this listener is added to
+   */
+  public AutoScrollListener(DragAwareWidget handle) {
+    this(handle.getDragBehavior());
+  }
+
+  /**
+   * @param handle the DragBehavior this listener is added to
+   */
+  public AutoScrollListener(DragBehavior handle) {
+    this(handle, 40, 20);
+  }
+
+  /**
+   * @param handle the DragAwareWidget this listener is added to
+   * @param edgeSize how close, in pixels, the mouse must be to the edge of
+   *   the window before we start scrolling
+   * @param maxSpeed how many pixels we scroll per frame when the mouse
+   *   is right at the edge of the window
+   */
+  public AutoScrollListener(DragAwareWidget handle, int edgeSize, int maxSpeed) {
+    this(handle.getDragBehavior(), edgeSize, maxSpeed);
+  }
+
+  /**
+   * @param handle the DragBehavior this listener is added to
+   * @param edgeSize how close, in pixels, the mouse must be to the edge of
+   *   the window before we start scrolling
+   * @param maxSpeed how many pixels we scroll per frame when the mouse
+   *   is right at the edge of the window
+   */
+  public AutoScrollListener(DragBehavior handle, int edgeSize, int maxSpeed) {
+    this.handle = handle;
+    this.edgeSize = edgeSize;
+    this.maxSpeed = maxSpeed;
+    this.scrolling = false;
+    this.scrollTimer = new Timer() {
+      public void run() {
+        scrollOneFrame();
+      }
+    };
+  }
+
+  public void startDragging(int mouseX, int mouseY) {
+    updateSpeed(mouseX, mouseY);
+  }
+
+  public void drag(int mouseX, int mouseY, int deltaX, int deltaY) {
+    updateSpeed(mouseX, mouseY);
+  }
+
+  public void endDragging(int mouseX, int mouseY, int deltaX, int deltaY) {
+    stopScrolling();
+  }
+
+  /**
+   * Works out how fast we should be scrolling with the mouse at
+   * (mouseX, mouseY), and starts or stops the scroll timer accordingly
+   */
+  private void updateSpeed(int mouseX, int mouseY) {
+    speedX = getSpeed(mouseX, Window.getClientWidth());
+    speedY = getSpeed(mouseY, Window.getClientHeight());
+
+    if (speedX == 0 && speedY == 0) {
+      stopScrolling();
+    } else if (!scrolling) {
+      scrolling = true;
+      scrollTimer.scheduleRepeating(FRAME_INTERVAL);
+    }
+  }
+
+  /**
+   * Returns the scroll speed along one axis, negative towards the
+   * start of the page, for the mouse at mousePos in a window that is
+   * windowSize big along that axis.  The speed is proportional to how
+   * deep into the edge zone the mouse is, and no more than maxSpeed when
+   * the mouse is dragged out of the window.
+   */
+  private int getSpeed(int mousePos, int windowSize) {
+    if (mousePos < edgeSize) {
+      return -Math.min(maxSpeed, Math.max(1, maxSpeed * (edgeSize - mousePos) / edgeSize));
+    } else if (mousePos > windowSize - edgeSize) {
+      return Math.min(maxSpeed, Math.max(1, maxSpeed * (mousePos - (windowSize - edgeSize)) / edgeSize));
+    } else {
+      return 0;
+    }
+  }
+
+  private void stopScrolling() {
+    if (scrolling) {
+      scrolling = false;
+      scrollTimer.cancel();
+    }
+  }
+
+  /**
+   * Scrolls the page once, and tells the handle how far we actually got
+   */
+  private void scrollOneFrame() {
+    int oldLeft = DomUtils.getScrollLeft();
+    int oldTop = DomUtils.getScrollTop();
+    DomUtils.scrollBy(speedX, speedY);
+
+    // we may have hit the end of the page, so see how far we actually went
+    int scrollDeltaX = DomUtils.getScrollLeft() - oldLeft;
+    int scrollDeltaY = DomUtils.getScrollTop() - oldTop;
+    if (scrollDeltaX != 0 || scrollDeltaY != 0) {
+      handle.dragScrolled(scrollDeltaX, scrollDeltaY);
+    }
+  }
+}
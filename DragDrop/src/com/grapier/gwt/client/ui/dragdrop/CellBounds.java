@@ -0,0 +1,179 @@
+package com.grapier.gwt.client.ui.dragdrop;
+
+import com.google.gwt.user.client.DOM;
+import com.google.gwt.user.client.Element;
+
+/**
+ * Where the rows and columns of an ArrangeableTable are on the page, to
+ * find which cells are at a point, or inside a rectangle, by binary
+ * searching.  Only one cell per row and one cell per column is measured.
+ *
+ * Cells that are part of a widget spanning several cells don't tell us the
+ * size of a single row or column, so rows or columns made up only of those
+ * are divided evenly over the space between their neighbors.
+ *
+ * @author chungwu
+ */
+class CellBounds {
+  private int[] rowTops;
+  private int[] rowBottoms;
+  private int[] colLefts;
+  private int[] colRights;
+
+  public CellBounds(ArrangeableTable table) {
+    int rows = table.getRowCount();
+    int cols = table.getColumnCount();
+    rowTops = new int[rows];
+    rowBottoms = new int[rows];
+    colLefts = new int[cols];
+    colRights = new int[cols];
+    boolean[] rowKnown = new boolean[rows];
+    boolean[] colKnown = new boolean[cols];
+
+    for (int r=0; r<rows; r++) {
+      for (int c=0; c<cols && !rowKnown[r]; c++) {
+        if (!table.isSpannedCell(r, c)) {
+          Element td = table.getCellFormatter().getElement(r, c);
+          rowTops[r] = DOM.getAbsoluteTop(td);
+          rowBottoms[r] = rowTops[r] + DOM.getIntAttribute(td, "offsetHeight");
+          rowKnown[r] = true;
+        }
+      }
+    }
+    for (int c=0; c<cols; c++) {
+      for (int r=0; r<rows && !colKnown[c]; r++) {
+        if (!table.isSpannedCell(r, c)) {
+          Element td = table.getCellFormatter().getElement(r, c);
+          colLefts[c] = DOM.getAbsoluteLeft(td);
+          colRights[c] = colLefts[c] + DOM.getIntAttribute(td, "offsetWidth");
+          colKnown[c] = true;
+        }
+      }
+    }
+
+    int left = table.getAbsoluteLeft();
+    int top = table.getAbsoluteTop();
+    fillGaps(rowTops, rowBottoms, rowKnown, top, top + table.getOffsetHeight());
+    fillGaps(colLefts, colRights, colKnown, left, left + table.getOffsetWidth());
+  }
+
+  /**
+   * Returns the row that strictly contains absY; -1 if none does
+   */
+  public int findRow(int absY) {
+    return findInterval(rowTops, rowBottoms, absY);
+  }
+
+  /**
+   * Returns the column that strictly contains absX; -1 if none does
+   */
+  public int findColumn(int absX) {
+    return findInterval(colLefts, colRights, absX);
+  }
+
+  /**
+   * Returns the first row that ends below absY; the row count if none does
+   */
+  public int findFirstRowEndingAfter(int absY) {
+    return findFirstEndingAfter(rowBottoms, absY);
+  }
+
+  /**
+   * Returns the last row that starts above absY; -1 if none does
+   */
+  public int findLastRowStartingBefore(int absY) {
+    return findLastStartingBefore(rowTops, absY);
+  }
+
+  /**
+   * Returns the first column that ends right of absX; the column count if
+   * none does
+   */
+  public int findFirstColumnEndingAfter(int absX) {
+    return findFirstEndingAfter(colRights, absX);
+  }
+
+  /**
+   * Returns the last column that starts left of absX; -1 if none does
+   */
+  public int findLastColumnStartingBefore(int absX) {
+    return findLastStartingBefore(colLefts, absX);
+  }
+
+  /**
+   * Divides the space between known intervals evenly among the runs
+   * of unknown intervals between them
+   */
+  private static void fillGaps(int[] starts, int[] ends, boolean[] known, int min, int max) {
+    int i = 0;
+    while (i < known.length) {
+      if (known[i]) {
+        i++;
+        continue;
+      }
+
+      int j = i;
+      while (j < known.length && !known[j]) {
+        j++;
+      }
+      int from = (i == 0) ? min : ends[i-1];
+      int to = (j == known.length) ? max : starts[j];
+      int count = j - i;
+      for (int k=i; k<j; k++) {
+        starts[k] = from + (to - from) * (k - i) / count;
+        ends[k] = from + (to - from) * (k - i + 1) / count;
+      }
+      i = j;
+    }
+  }
+
+  /**
+   * Returns the index of the interval (starts[i], ends[i]) that strictly
+   * contains value; -1 if none does.  The intervals must be sorted.
+   */
+  private static int findInterval(int[] starts, int[] ends, int value) {
+    int found = findLastStartingBefore(starts, value);
+    if (found >= 0 && value < ends[found]) {
+      return found;
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the index of the last of the sorted starts that is less than
+   * value; -1 if there's none
+   */
+  private static int findLastStartingBefore(int[] starts, int value) {
+    int low = 0;
+    int high = starts.length - 1;
+    int found = -1;
+    while (low <= high) {
+      int mid = (low + high) / 2;
+      if (starts[mid] < value) {
+        found = mid;
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return found;
+  }
+
+  /**
+   * Returns the index of the first of the sorted ends that is greater
+   * than value; ends.length if there's none
+   */
+  private static int findFirstEndingAfter(int[] ends, int value) {
+    int low = 0;
+    int high = ends.length;
+    while (low < high) {
+      int mid = (low + high) / 2;
+      if (ends[mid] > value) {
+        high = mid;
+      } else {
+        low = mid + 1;
+      }
+    }
+    return low;
+  }
+}
@@ -1,9 +1,5 @@
 package com.grapier.gwt.client.ui.dragdrop;
 
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
-
 import com.google.gwt.user.client.DOM;
 import com.google.gwt.user.client.Event;
 import com.google.gwt.user.client.EventPreview;
@@ -17,6 +13,15 @@ import com.google.gwt.user.client.ui.Widget;
  * way.  Note that you need to call setWidget() on this class to set an 
  * actual widget you wish to drag!
  * 
+ * By default, a drag starts as soon as the mouse is pressed.  With
+ * setDragThreshold() or setDragDelay(), it only starts once the mouse has
+ * moved far enough, or been held down long enough; until then, pressing
+ * the mouse is just a click, and the DragListeners aren't told anything.
+ * 
+ * The dragging itself is done by a DragBehavior on the wrapper's element.
+ * To make a widget draggable without wrapping it, use DragBehavior.attach()
+ * instead.
+ * 
  * @author chungwu
  */
 public class DragAwareWidget extends SimplePanel implements EventPreview {
@@ -44,89 +49,118 @@ public class DragAwareWidget extends SimplePanel implements EventPreview {
     public void endDragging(int mouseX, int mouseY, int deltaX, int deltaY);
   }
   
-  private boolean dragging = false;
-  private int dragStartX;
-  private int dragStartY;
-  private List listeners = null;
+  /**
+   * A DragListener may additionally implement DragScrollListener if it
+   * needs to know when the page has been scrolled in the middle of a drag
+   * (for example, by an AutoScrollListener).  It is notified before the
+   * drag event that follows the scroll.
+   */
+  public interface DragScrollListener {
+    /**
+     * The page has been scrolled by (scrollDeltaX, scrollDeltaY) pixels
+     * while dragging
+     */
+    public void dragScrolled(int scrollDeltaX, int scrollDeltaY);
+  }
+  
+  private DragBehavior behavior;
   
   public DragAwareWidget(Widget widget) {
     super();
     this.setWidget(widget);
-    this.listeners = new ArrayList();
+    this.behavior = new DragBehavior(getElement());
     
     // we want to listen to mouse events on this widget
     DOM.sinkEvents(getElement(), Event.MOUSEEVENTS);
   }
   
+  /**
+   * Returns the DragBehavior that does the dragging for this widget
+   */
+  public DragBehavior getDragBehavior() {
+    return behavior;
+  }
+  
   /**
    * Adds a DragListener to this widget.  DragListeners are called for
    * each drag event in the order that they are added.
    */
   public void addDragListener(DragListener listener) {
-    listeners.add(listener);
+    behavior.addDragListener(listener);
+  }
+  
+  /**
+   * Removes a DragListener from this widget.  It is safe to call this
+   * from within a DragListener's endDragging.
+   */
+  public void removeDragListener(DragListener listener) {
+    behavior.removeDragListener(listener);
+  }
+  
+  /**
+   * Returns the number of DragListeners on this widget
+   */
+  public int getDragListenerCount() {
+    return behavior.getDragListenerCount();
   }
 
   /**
-   * Start the drag on mouse down
+   * Sets how far, in pixels, the mouse has to move while pressed before
+   * a drag starts.  0, the default, starts it right away, or only once the
+   * drag delay is up if there is one.
    */
-  private void dragStart(int mouseX, int mouseY) {
-    // make sure this widget captures all consequent mouse events
-    DOM.setCapture(getElement());
-    
-    // record the starting mouse positions
-    dragStartX = mouseX;
-    dragStartY = mouseY;
+  public void setDragThreshold(int pixels) {
+    behavior.setDragThreshold(pixels);
+  }
+  
+  /**
+   * Sets how long, in milliseconds, the mouse has to be held down before
+   * a drag starts, even if it hasn't moved dragThreshold pixels.  Without
+   * a drag threshold, moving the mouse before then doesn't start a drag.
+   * 0, the default, doesn't wait.
+   */
+  public void setDragDelay(int millis) {
+    behavior.setDragDelay(millis);
+  }
 
-    // add this as an event preview to handle mousemove and mouseup
-    // events.  This makes drag-drop a lot snappier than going through
-    // the usual mouselistener channel, since an event preview gets
-    // an event before anything else, and can prevent events from
-    // uselessly propagating
-    DOM.addEventPreview(this);
-    
-    dragging = true;
-    
-    // fire off the startDragging event
-    for (Iterator iter = listeners.iterator(); iter.hasNext(); ) {
-      ((DragListener) iter.next()).startDragging(mouseX, mouseY);
-    }
+  /**
+   * Start the drag on mouse down, or once the mouse has moved past the
+   * drag threshold.  This, dragMove() and dragEnd() can also be called 
+   * directly to drive a drag from a script.
+   */
+  public void dragStart(int mouseX, int mouseY) {
+    behavior.dragStart(mouseX, mouseY);
   }
   
   /**
    * Move the drag on mouse move
    */
-  private void dragMove(int mouseX, int mouseY) {
-    if (dragging) {
-      // calculate the deltas
-      int deltaX = (mouseX - dragStartX);
-      int deltaY = (mouseY - dragStartY);
-
-      // fire the drag event
-      for (Iterator iter = listeners.iterator(); iter.hasNext(); ) {
-        ((DragListener) iter.next()).drag(mouseX, mouseY, deltaX, deltaY);
-      }
-    }
+  public void dragMove(int mouseX, int mouseY) {
+    behavior.dragMove(mouseX, mouseY);
   }
 
   /**
    * End the drag on mouse up
    */
-  private void dragEnd(int mouseX, int mouseY) {
-    if (dragging) {
-      // remove this as an event preview
-      DOM.removeEventPreview(this);
-      dragging = false;
-    
-      // release capture of mouse events
-      DOM.releaseCapture(getElement());
-      
-      // fire the endDragging event
-      int deltaX = (mouseX - dragStartX);
-      int deltaY = (mouseY - dragStartY);
-      for (Iterator iter = listeners.iterator(); iter.hasNext(); ) {
-        ((DragListener) iter.next()).endDragging(mouseX, mouseY, deltaX, deltaY);
-      }
-    }
+  public void dragEnd(int mouseX, int mouseY) {
+    behavior.dragEnd(mouseX, mouseY);
+  }
+
+  /**
+   * Tells the DragScrollListeners that the page has scrolled by
+   * (scrollDeltaX, scrollDeltaY) while dragging; see
+   * DragBehavior.dragScrolled()
+   */
+  public void dragScrolled(int scrollDeltaX, int scrollDeltaY) {
+    behavior.dragScrolled(scrollDeltaX, scrollDeltaY);
+  }
+
+  /**
+   * Listen for the ONMOUSEMOVE and ONMOUSEUP events and either drag
+   * or end the drag; see DragBehavior.onEventPreview()
+   */
+  public boolean onEventPreview(Event event) {
+    return behavior.onEventPreview(event);
   }
 
   /**
@@ -138,28 +172,8 @@ public class DragAwareWidget extends SimplePanel implements EventPreview {
         int x = DOM.eventGetClientX(event);
         int y = DOM.eventGetClientY(event);
         DOM.eventPreventDefault(event);
-        dragStart(x, y);
+        behavior.press(x, y);
         break;
     }
   }
-
-  /**
-   * Listen for the ONMOUSEMOVE and ONMOUSEUP events and either drag
-   * or end the drag
-   */
-  public boolean onEventPreview(Event event) {
-    int x = DOM.eventGetClientX(event);
-    int y = DOM.eventGetClientY(event);
-    switch (DOM.eventGetType(event)) {
-    case Event.ONMOUSEUP:
-      dragEnd(x, y);
-      break;
-    case Event.ONMOUSEMOVE:
-      dragMove(x, y);
-      break;
-    }
-
-    // Do not allow the event to fire for anything else
-    return true;
-  }
 }
\ No newline at end of file
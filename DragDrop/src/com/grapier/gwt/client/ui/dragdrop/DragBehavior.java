@@ -0,0 +1,401 @@
+package com.grapier.gwt.client.ui.dragdrop;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import com.google.gwt.user.client.DOM;
+import com.google.gwt.user.client.Element;
+import com.google.gwt.user.client.Event;
+import com.google.gwt.user.client.EventListener;
+import com.google.gwt.user.client.EventPreview;
+import com.google.gwt.user.client.Timer;
+import com.google.gwt.user.client.ui.Widget;
+import com.grapier.gwt.client.util.DomUtils;
+
+/**
+ * Makes an element drag-aware, without wrapping it in anything.  It tells
+ * its DragListeners about drags on the element just like a
+ * DragAwareWidget, which is itself a wrapper with a DragBehavior, so a
+ * DragBehavior can be used wherever a DragAwareWidget is, say as the
+ * handle of a widget in an ArrangeableTable.
+ *
+ * Use attach() to make any existing Widget or element draggable, without
+ * adding anything to the page.  An element that has no GWT event listener
+ * of its own gets this as its listener, and hears its own mouse downs.
+ * A Widget's element already has the widget as its listener, which we
+ * leave alone, so its mouse downs are heard by whatever panel it is in:
+ * ArrangeableTable, ArrangeableBoard, FreeformBoard and ArrangeableList
+ * pass them on to pressAttached().
+ *
+ * As a fallback, a single event preview shared by all the attached
+ * elements picks up mouse downs too, for attached Widgets in any other
+ * panel.  GWT only shows events to the event preview on top, and every
+ * PopupPanel, modal or not, pushes one while it's showing, so such a
+ * Widget can't be dragged while any popup is up; call pressAttached()
+ * from its panel's onBrowserEvent(), or wrap it in a DragAwareWidget, if
+ * it has to be.
+ *
+ * @author chungwu
+ */
+public class DragBehavior implements EventPreview, EventListener {
+
+  // the property of an attached element that holds its DragBehavior, and
+  // the one where GWT keeps the element's event listener
+  private static final String BEHAVIOR_PROPERTY = "__dragBehavior";
+  private static final String LISTENER_PROPERTY = "__listener";
+
+  /**
+   * Starts a drag on whichever attached element the mouse is pressed in
+   */
+  private static class MouseDownPreview implements EventPreview {
+    public boolean onEventPreview(Event event) {
+      if (DOM.eventGetType(event) == Event.ONMOUSEDOWN) {
+        pressAttached(event);
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Presses the mouse on the innermost attached element that the argument
+   * mouse down is in, if any.  The same mouse down may come here from
+   * both the event preview and a listener; only the first one presses.
+   */
+  public static void pressAttached(Event event) {
+    for (Element elem = DOM.eventGetTarget(event); elem != null; elem = DOM.getParent(elem)) {
+      DragBehavior behavior = (DragBehavior) DomUtils.getObject(elem, BEHAVIOR_PROPERTY);
+      if (behavior != null) {
+        DOM.eventPreventDefault(event);
+        if (!behavior.pressed && !behavior.dragging) {
+          behavior.press(DOM.eventGetClientX(event), DOM.eventGetClientY(event));
+        }
+        return;
+      }
+    }
+  }
+
+  private static MouseDownPreview mouseDownPreview;
+
+  private Element element;
+  private boolean dragging = false;
+
+  // the mouse has been pressed, but hasn't yet moved dragThreshold
+  // pixels or been held down for dragDelay milliseconds
+  private boolean pressed = false;
+  private int dragThreshold;
+  private int dragDelay;
+  private Timer dragDelayTimer;
+  private int dragStartX;
+  private int dragStartY;
+  private int lastMouseX;
+  private int lastMouseY;
+  private List listeners;
+
+  /**
+   * Makes the argument widget draggable as it is, and returns its
+   * DragBehavior
+   */
+  public static DragBehavior attach(Widget widget) {
+    return attach(widget.getElement(), false);
+  }
+
+  /**
+   * Makes the argument element draggable as it is, and returns its
+   * DragBehavior; the same one every time for the same element
+   */
+  public static DragBehavior attach(Element element) {
+    return attach(element, true);
+  }
+
+  /**
+   * Attaches a DragBehavior to the argument element.  If listen is true
+   * and the element has no event listener, the DragBehavior becomes its
+   * listener; a Widget's element gets the widget as its listener once
+   * it's on the page, so it mustn't.
+   */
+  private static DragBehavior attach(Element element, boolean listen) {
+    DragBehavior behavior = (DragBehavior) DomUtils.getObject(element, BEHAVIOR_PROPERTY);
+    if (behavior == null) {
+      behavior = new DragBehavior(element);
+      DomUtils.setObject(element, BEHAVIOR_PROPERTY, behavior);
+    }
+    if (listen && DomUtils.getObject(element, LISTENER_PROPERTY) == null) {
+      DOM.setEventListener(element, behavior);
+      DOM.sinkEvents(element, DOM.getEventsSunk(element) | Event.ONMOUSEDOWN);
+    }
+    if (mouseDownPreview == null) {
+      mouseDownPreview = new MouseDownPreview();
+      DOM.addEventPreview(mouseDownPreview);
+    }
+    return behavior;
+  }
+
+  /**
+   * Creates a DragBehavior for the argument element that isn't attached
+   * to it; call press() yourself when the mouse is pressed in it, as
+   * DragAwareWidget does
+   */
+  public DragBehavior(Element element) {
+    this.element = element;
+    this.listeners = new ArrayList();
+  }
+
+  /**
+   * Stops the element from being dragged, if it was attached
+   */
+  public void detach() {
+    if (DomUtils.getObject(element, BEHAVIOR_PROPERTY) == this) {
+      DomUtils.setObject(element, BEHAVIOR_PROPERTY, null);
+    }
+    if (isListening()) {
+      DOM.sinkEvents(element, DOM.getEventsSunk(element) & ~Event.ONMOUSEDOWN);
+      DOM.setEventListener(element, null);
+    }
+  }
+
+  /**
+   * Returns true if this is its element's event listener
+   */
+  private boolean isListening() {
+    return DomUtils.getObject(element, LISTENER_PROPERTY) == this;
+  }
+
+  /**
+   * Hears mouse downs on the element, when this is its event listener
+   */
+  public void onBrowserEvent(Event event) {
+    if (DOM.eventGetType(event) == Event.ONMOUSEDOWN) {
+      pressAttached(event);
+    }
+  }
+
+  public Element getElement() {
+    return element;
+  }
+
+  /**
+   * Adds a DragListener.  DragListeners are called for each drag event
+   * in the order that they are added.
+   */
+  public void addDragListener(DragAwareWidget.DragListener listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * Removes a DragListener.  It is safe to call this from within a
+   * DragListener's endDragging.
+   */
+  public void removeDragListener(DragAwareWidget.DragListener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * Returns the number of DragListeners
+   */
+  public int getDragListenerCount() {
+    return listeners.size();
+  }
+
+  /**
+   * Sets how far, in pixels, the mouse has to move while pressed before
+   * a drag starts.  0, the default, starts it right away, or only once the
+   * drag delay is up if there is one.
+   */
+  public void setDragThreshold(int pixels) {
+    this.dragThreshold = pixels;
+  }
+
+  /**
+   * Sets how long, in milliseconds, the mouse has to be held down before
+   * a drag starts, even if it hasn't moved dragThreshold pixels.  Without
+   * a drag threshold, moving the mouse before then doesn't start a drag.
+   * 0, the default, doesn't wait.
+   */
+  public void setDragDelay(int millis) {
+    this.dragDelay = millis;
+  }
+
+  /**
+   * Starts listening to the mouse on mouse down, and starts the drag
+   * right away unless there's a drag threshold or delay
+   */
+  public void press(int mouseX, int mouseY) {
+    if (dragThreshold <= 0 && dragDelay <= 0) {
+      dragStart(mouseX, mouseY);
+      return;
+    }
+
+    captureMouse();
+    pressed = true;
+    dragStartX = mouseX;
+    dragStartY = mouseY;
+    if (dragDelay > 0) {
+      if (dragDelayTimer == null) {
+        dragDelayTimer = new Timer() {
+          public void run() {
+            if (pressed) {
+              dragStart(dragStartX, dragStartY);
+            }
+          }
+        };
+      }
+      dragDelayTimer.schedule(dragDelay);
+    }
+  }
+
+  /**
+   * Forgets a mouse press that never turned into a drag
+   */
+  private void unpress() {
+    pressed = false;
+    if (dragDelayTimer != null) {
+      dragDelayTimer.cancel();
+    }
+    releaseMouse();
+  }
+
+  /**
+   * Makes sure this gets all the following mouse events
+   */
+  private void captureMouse() {
+    DOM.setCapture(element);
+
+    // add this as an event preview to handle mousemove and mouseup
+    // events.  This makes drag-drop a lot snappier than going through
+    // the usual mouselistener channel, since an event preview gets
+    // an event before anything else, and can prevent events from
+    // uselessly propagating
+    DOM.addEventPreview(this);
+  }
+
+  private void releaseMouse() {
+    DOM.removeEventPreview(this);
+    DOM.releaseCapture(element);
+  }
+
+  /**
+   * Start the drag on mouse down, or once the mouse has moved past the
+   * drag threshold.  This, dragMove() and dragEnd() can also be called
+   * directly to drive a drag from a script.
+   */
+  public void dragStart(int mouseX, int mouseY) {
+    if (pressed) {
+      // we're already listening to the mouse
+      pressed = false;
+      if (dragDelayTimer != null) {
+        dragDelayTimer.cancel();
+      }
+    } else {
+      captureMouse();
+    }
+
+    // record the starting mouse positions
+    dragStartX = mouseX;
+    dragStartY = mouseY;
+    lastMouseX = mouseX;
+    lastMouseY = mouseY;
+
+    dragging = true;
+
+    // fire off the startDragging event
+    for (Iterator iter = listeners.iterator(); iter.hasNext(); ) {
+      ((DragAwareWidget.DragListener) iter.next()).startDragging(mouseX, mouseY);
+    }
+  }
+
+  /**
+   * Move the drag on mouse move
+   */
+  public void dragMove(int mouseX, int mouseY) {
+    if (dragging) {
+      lastMouseX = mouseX;
+      lastMouseY = mouseY;
+
+      // calculate the deltas
+      int deltaX = (mouseX - dragStartX);
+      int deltaY = (mouseY - dragStartY);
+
+      // fire the drag event
+      for (Iterator iter = listeners.iterator(); iter.hasNext(); ) {
+        ((DragAwareWidget.DragListener) iter.next()).drag(mouseX, mouseY, deltaX, deltaY);
+      }
+    }
+  }
+
+  /**
+   * End the drag on mouse up
+   */
+  public void dragEnd(int mouseX, int mouseY) {
+    if (dragging) {
+      dragging = false;
+      releaseMouse();
+
+      // fire the endDragging event.  We go through a copy of the
+      // listeners, since a drop may add or remove listeners
+      int deltaX = (mouseX - dragStartX);
+      int deltaY = (mouseY - dragStartY);
+      for (Iterator iter = new ArrayList(listeners).iterator(); iter.hasNext(); ) {
+        ((DragAwareWidget.DragListener) iter.next()).endDragging(mouseX, mouseY, deltaX, deltaY);
+      }
+    }
+  }
+
+  /**
+   * Tells the DragScrollListeners that the page has scrolled by
+   * (scrollDeltaX, scrollDeltaY) while dragging, and then fires a drag
+   * event at the last known mouse position, since the mouse is now over
+   * a different part of the page even though it hasn't moved.
+   */
+  public void dragScrolled(int scrollDeltaX, int scrollDeltaY) {
+    if (!dragging) {
+      return;
+    }
+
+    for (Iterator iter = listeners.iterator(); iter.hasNext(); ) {
+      Object listener = iter.next();
+      if (listener instanceof DragAwareWidget.DragScrollListener) {
+        ((DragAwareWidget.DragScrollListener) listener).dragScrolled(scrollDeltaX, scrollDeltaY);
+      }
+    }
+    dragMove(lastMouseX, lastMouseY);
+  }
+
+  /**
+   * Listen for the ONMOUSEMOVE and ONMOUSEUP events and either drag
+   * or end the drag
+   */
+  public boolean onEventPreview(Event event) {
+    int x = DOM.eventGetClientX(event);
+    int y = DOM.eventGetClientY(event);
+    switch (DOM.eventGetType(event)) {
+    case Event.ONMOUSEUP:
+      if (pressed) {
+        // it was just a click
+        unpress();
+      } else {
+        dragEnd(x, y);
+      }
+      break;
+    case Event.ONMOUSEMOVE:
+      if (pressed) {
+        // with only a delay, moving doesn't start the drag; the timer does
+        int deltaX = x - dragStartX;
+        int deltaY = y - dragStartY;
+        if (dragThreshold > 0 
+            && deltaX*deltaX + deltaY*deltaY >= dragThreshold*dragThreshold) {
+          // start from where the mouse was pressed, so the
+          // listeners see the whole distance moved
+          dragStart(dragStartX, dragStartY);
+          dragMove(x, y);
+        }
+      } else {
+        dragMove(x, y);
+      }
+      break;
+    }
+
+    // Do not allow the event to fire for anything else
+    return true;
+  }
+}
@@ -1,9 +1,12 @@
 package com.grapier.gwt.client.ui.dragdrop;
 
 import java.util.List;
+import java.util.Map;
 
+import com.google.gwt.user.client.Timer;
 import com.google.gwt.user.client.ui.Widget;
 import com.grapier.gwt.client.ui.dragdrop.DragAwareWidget.DragListener;
+import com.grapier.gwt.client.ui.dragdrop.DragAwareWidget.DragScrollListener;
 import com.grapier.gwt.client.util.DomUtils;
 
 /**
@@ -14,10 +17,28 @@ import com.grapier.gwt.client.util.DomUtils;
  * 
  * You specify a DragDropListener.WidgetHandler to handle events when
  * we hover over a widget or drop onto a widget.
+ * 
+ * The boundaries of the drop targets, and the scroll position of the page,
+ * are measured once and cached for the rest of the drag.  If the drop
+ * targets move around during a drag, call invalidateTargetCache() so
+ * they get measured again on the next check.
+ * 
+ * Instead of a list of widgets, the drop targets can come from a
+ * DropTargetRegistry shared with other listeners and ArrangeableTables.
+ * 
+ * When hovering is expensive to handle, use setHoverDwell() so that a
+ * drag sweeping across many targets only reports the one it comes to
+ * rest on, and setHoverHysteresis() so that a drag wobbling on the edge
+ * between two targets doesn't keep switching between them.
+ * 
+ * Not every target has to take everything: give the listener a payload
+ * saying what is being dragged, and give targets a DropAcceptor.  Each
+ * target is asked once, when the drag starts, and targets that won't
+ * take the payload are left out of the drag altogether.
  *  
  * @author chungwu
  */
-public class DragDropListener implements DragListener {
+public class DragDropListener implements DragListener, DragScrollListener {
 
   public interface WidgetHandler {
     /**
@@ -32,6 +53,17 @@ public class DragDropListener implements DragListener {
      */
     public void handleDropWidget(Widget widget);
   }
+  
+  /**
+   * Decides whether a drop target takes what is being dragged
+   */
+  public interface DropAcceptor {
+    /**
+     * Returns true if target accepts payload, the object being dragged.
+     * Only called once per target per drag.
+     */
+    public boolean acceptsDrop(Widget target, Object payload);
+  }
 
   // we don't want to check widget-hovering on every mouse event
   // because that's expensive.  Instead, we do it once every
@@ -42,10 +74,59 @@ public class DragDropListener implements DragListener {
    * @gwt.typeArgs <com.google.gwt.user.client.ui.Widget>
    */
   private List dropTargets;
+  private DropTargetRegistry registry;
+  
+  // asks accepts() about each target the registry finds, so that it can
+  // look past the ones that don't take the payload
+  private DropTargetRegistry.TargetFilter acceptanceFilter;
   private int timesSinceLastCheck;
   private WidgetHandler widgetHandler;
   private Widget activeTarget;
   
+  // what is being dragged, and the DropAcceptor of each target that has
+  // a say in whether it takes it
+  private Object payload;
+  private Map dropAcceptors;
+  
+  // the dropTargets that accept the payload, worked out at the start of
+  // a drag (null if they need to be worked out again), and the size 
+  // dropTargets had then; with a registry, the answer (a Boolean) of 
+  // each target asked so far in this drag
+  
+  /**
+   * @gwt.typeArgs <com.google.gwt.user.client.ui.Widget>
+   */
+  private List eligibleTargets;
+  private int eligibleFromSize;
+  private Map acceptedTargets;
+  
+  // a target we're hovering over, but haven't reported yet because we
+  // haven't hovered over it for hoverDwell milliseconds
+  private int hoverDwell;
+  private Widget pendingTarget;
+  private boolean hasPendingTarget;
+  private Timer dwellTimer;
+  
+  // how far, in pixels, a drag has to leave the activeTarget before it
+  // is considered to be over something else; and the absolute 
+  // boundaries of the activeTarget, measured when first needed
+  private int hoverHysteresis;
+  private boolean activeBoundsKnown;
+  private int activeLeft;
+  private int activeTop;
+  private int activeWidth;
+  private int activeHeight;
+  
+  // cached absolute boundaries of each widget in eligibleTargets, by index;
+  // null if they need to be measured again
+  private int[] targetLefts;
+  private int[] targetTops;
+  private int[] targetWidths;
+  private int[] targetHeights;
+  private int scrollLeft;
+  private int scrollTop;
+  private boolean scrollKnown;
+  
   /**
    * @param dropTargets a Collection of Widgets that you may drag
    *   over and drop onto 
@@ -57,6 +138,72 @@ public class DragDropListener implements DragListener {
     this.widgetHandler = widgetHandler;
     this.timesSinceLastCheck = 0;
     this.activeTarget = null;
+    this.dropAcceptors = DomUtils.newMap();
+    this.acceptedTargets = DomUtils.newMap();
+    this.dwellTimer = new Timer() {
+      public void run() {
+        if (hasPendingTarget) {
+          Widget target = pendingTarget;
+          clearPendingTarget();
+          hoverOver(target);
+        }
+      }
+    };
+  }
+  
+  /**
+   * @param registry a DropTargetRegistry holding everything you may
+   *   drag over and drop onto
+   */
+  public DragDropListener(DropTargetRegistry registry, WidgetHandler widgetHandler) {
+    this((List) null, widgetHandler);
+    this.registry = registry;
+    this.acceptanceFilter = new DropTargetRegistry.TargetFilter() {
+      public boolean accepts(Widget target) {
+        return DragDropListener.this.accepts(target);
+      }
+    };
+  }
+  
+  /**
+   * Sets the object being dragged, which DropAcceptors are asked about
+   */
+  public void setPayload(Object payload) {
+    this.payload = payload;
+  }
+  
+  public Object getPayload() {
+    return payload;
+  }
+  
+  /**
+   * Sets the DropAcceptor that decides whether target takes the payload;
+   * with null, the target takes anything.  Takes effect on the next drag.
+   */
+  public void setDropAcceptor(Widget target, DropAcceptor acceptor) {
+    if (acceptor == null) {
+      dropAcceptors.remove(target);
+    } else {
+      dropAcceptors.put(target, acceptor);
+    }
+  }
+  
+  /**
+   * Sets how long, in milliseconds, a drag has to stay over a new target
+   * before the WidgetHandler is told about it.  0, the default, tells it
+   * right away.
+   */
+  public void setHoverDwell(int millis) {
+    this.hoverDwell = millis;
+  }
+  
+  /**
+   * Sets how far, in pixels, a drag has to move out of the target it's
+   * hovering over before it can be over another one.  0, the default,
+   * switches targets as soon as the drag crosses the boundary.
+   */
+  public void setHoverHysteresis(int pixels) {
+    this.hoverHysteresis = pixels;
   }
   
   public void drag(int mouseX, int mouseY, int deltaX, int deltaY) {
@@ -64,9 +211,16 @@ public class DragDropListener implements DragListener {
     // whether we're hovering over a widget
     if (timesSinceLastCheck > INTERVAL_BETWEEN_CHECKS) {
       Widget target = findHoverWidget(mouseX, mouseY);
-      if (activeTarget != target) {
-        activeTarget = target;
-        widgetHandler.handleHoverWidget(target);
+      if (target == activeTarget) {
+        clearPendingTarget();
+      } else if (hoverDwell <= 0) {
+        hoverOver(target);
+      } else if (!hasPendingTarget || target != pendingTarget) {
+        // wait and see if the drag stays there
+        pendingTarget = target;
+        hasPendingTarget = true;
+        dwellTimer.cancel();
+        dwellTimer.schedule(hoverDwell);
       }
       timesSinceLastCheck = 0;
     } else {
@@ -75,35 +229,187 @@ public class DragDropListener implements DragListener {
   }
 
   public void endDragging(int mouseX, int mouseY, int deltaX, int deltaY) {
+    Widget target = findHoverWidget(mouseX, mouseY);
+    
+    // a drop doesn't wait for the dwell time
+    if (hasPendingTarget) {
+      clearPendingTarget();
+      if (target != activeTarget) {
+        hoverOver(target);
+      }
+    }
+    
     // fire a handleDrop event to the widgetHandler
-    widgetHandler.handleDropWidget(findHoverWidget(mouseX, mouseY));
+    widgetHandler.handleDropWidget(target);
     activeTarget = null;
+    invalidateTargetCache();
   }
 
   public void startDragging(int mouseX, int mouseY) {
+    // every drag checks for hovering on the same mouse moves
+    timesSinceLastCheck = 0;
+    eligibleTargets = null;
+    acceptedTargets.clear();
+    invalidateTargetCache();
+  }
+  
+  public void dragScrolled(int scrollDeltaX, int scrollDeltaY) {
+    // the page scrolled under the mouse; the targets are still where they
+    // were on the page, so just shift our idea of the scroll position
+    // rather than measuring everything again
+    scrollLeft += scrollDeltaX;
+    scrollTop += scrollDeltaY;
+  }
+  
+  /**
+   * Forgets the cached boundaries of the drop targets, so they will be
+   * measured again on the next check.  Call this if the drop targets
+   * have moved or changed size in the middle of a drag.
+   */
+  public void invalidateTargetCache() {
+    if (registry != null) {
+      registry.invalidate();
+    }
+    scrollKnown = false;
+    activeBoundsKnown = false;
+    targetLefts = null;
+    targetTops = null;
+    targetWidths = null;
+    targetHeights = null;
+  }
+  
+  /**
+   * Tells the WidgetHandler we're now hovering over the argument target
+   */
+  private void hoverOver(Widget target) {
+    activeTarget = target;
+    activeBoundsKnown = false;
+    widgetHandler.handleHoverWidget(target);
+  }
+  
+  private void clearPendingTarget() {
+    dwellTimer.cancel();
+    pendingTarget = null;
+    hasPendingTarget = false;
+  }
+  
+  /**
+   * Returns true if (absX, absY) is within hoverHysteresis pixels of 
+   * the activeTarget
+   */
+  private boolean nearActiveTarget(int absX, int absY) {
+    if (!activeBoundsKnown) {
+      activeLeft = activeTarget.getAbsoluteLeft();
+      activeTop = activeTarget.getAbsoluteTop();
+      activeWidth = activeTarget.getOffsetWidth();
+      activeHeight = activeTarget.getOffsetHeight();
+      activeBoundsKnown = true;
+    }
+    return inRectangle(
+        absX, absY, 
+        activeLeft - hoverHysteresis, activeTop - hoverHysteresis, 
+        activeWidth + 2*hoverHysteresis, activeHeight + 2*hoverHysteresis);
+  }
+  
+  /**
+   * Returns true if target takes the payload, asking its DropAcceptor the
+   * first time in a drag
+   */
+  private boolean accepts(Widget target) {
+    DropAcceptor acceptor = (DropAcceptor) dropAcceptors.get(target);
+    if (acceptor == null) {
+      return true;
+    }
     
+    Boolean accepted = (Boolean) acceptedTargets.get(target);
+    if (accepted == null) {
+      accepted = acceptor.acceptsDrop(target, payload) ? Boolean.TRUE : Boolean.FALSE;
+      acceptedTargets.put(target, accepted);
+    }
+    return accepted.booleanValue();
   }
   
   /**
-   * Finds the Widget, from dropTargets, that includes (mouseX, mouseY).
-   * Returns null if none does.
+   * Works out which dropTargets accept the payload
+   */
+  private void findEligibleTargets() {
+    eligibleFromSize = dropTargets.size();
+    if (dropAcceptors.isEmpty()) {
+      eligibleTargets = dropTargets;
+      return;
+    }
+    
+    eligibleTargets = DomUtils.newList();
+    for (int i=0; i<dropTargets.size(); i++) {
+      Widget target = (Widget) dropTargets.get(i);
+      if (accepts(target)) {
+        eligibleTargets.add(target);
+      }
+    }
+  }
+  
+  /**
+   * Measures and caches the boundaries of all the eligible drop targets
+   */
+  private void fillTargetCache() {
+    int size = eligibleTargets.size();
+    targetLefts = new int[size];
+    targetTops = new int[size];
+    targetWidths = new int[size];
+    targetHeights = new int[size];
+    for (int i=0; i<size; i++) {
+      Widget widget = (Widget) eligibleTargets.get(i);
+      targetLefts[i] = widget.getAbsoluteLeft();
+      targetTops[i] = widget.getAbsoluteTop();
+      targetWidths[i] = widget.getOffsetWidth();
+      targetHeights[i] = widget.getOffsetHeight();
+    }
+  }
+  
+  /**
+   * Finds the Widget, from the dropTargets that accept the payload, that
+   * includes (mouseX, mouseY).  Returns null if none does.
    */
   private Widget findHoverWidget(int mouseX, int mouseY) {
     // we calculate the mouse coordinates with respect to the top-left
     // corner of the page, rather than top-left corner of the screen
     // (essentially, taking scroll left/top into account)
+    if (!scrollKnown) {
+      scrollLeft = DomUtils.getScrollLeft();
+      scrollTop = DomUtils.getScrollTop();
+      scrollKnown = true;
+    }
 
-    int x = mouseX + DomUtils.getScrollLeft();
-    int y = mouseY + DomUtils.getScrollTop();
+    int x = mouseX + scrollLeft;
+    int y = mouseY + scrollTop;
     
-    if (activeTarget != null && inWidget(x, y, activeTarget)) {
+    if (activeTarget != null && hoverHysteresis > 0 && nearActiveTarget(x, y)) {
       return activeTarget;
     }
     
-    for (int i=0; i<dropTargets.size(); i++) {
-      Widget widget = (Widget) dropTargets.get(i);
-      if (inWidget(x, y, widget)) {
-        return widget;
+    if (registry != null) {
+      // look past the targets that won't take the payload
+      return registry.findDropTarget(x, y, dropAcceptors.isEmpty() ? null : acceptanceFilter);
+    }
+    
+    // drop targets may have been added to or removed from the list
+    if (eligibleTargets == null || eligibleFromSize != dropTargets.size()) {
+      findEligibleTargets();
+    }
+    if (targetLefts == null || targetLefts.length != eligibleTargets.size()) {
+      fillTargetCache();
+    }
+    
+    if (activeTarget != null) {
+      int index = eligibleTargets.indexOf(activeTarget);
+      if (index >= 0 && inTarget(x, y, index)) {
+        return activeTarget;
+      }
+    }
+    
+    for (int i=0; i<eligibleTargets.size(); i++) {
+      if (inTarget(x, y, i)) {
+        return (Widget) eligibleTargets.get(i);
       }
     }    
     return null;
@@ -111,13 +417,13 @@ public class DragDropListener implements DragListener {
   
   /**
    * Returns true if (absX, absY), in absolute coordinates, lies within
-   * the absolute boundaries of widget
+   * the cached absolute boundaries of the eligible drop target at index
    */
-  private boolean inWidget(int absX, int absY, Widget widget) {
+  private boolean inTarget(int absX, int absY, int index) {
     return inRectangle(
         absX, absY, 
-        widget.getAbsoluteLeft(), widget.getAbsoluteTop(), 
-        widget.getOffsetWidth(), widget.getOffsetHeight());
+        targetLefts[index], targetTops[index], 
+        targetWidths[index], targetHeights[index]);
   }
   
   /**
@@ -4,6 +4,7 @@ import com.google.gwt.user.client.DOM;
 import com.google.gwt.user.client.Element;
 import com.google.gwt.user.client.ui.Widget;
 import com.grapier.gwt.client.ui.dragdrop.DragAwareWidget.DragListener;
+import com.grapier.gwt.client.ui.dragdrop.DragAwareWidget.DragScrollListener;
 
 /**
  * A DragListener that moves an absolute-positioned widget
@@ -11,7 +12,7 @@ import com.grapier.gwt.client.ui.dragdrop.DragAwareWidget.DragListener;
  * 
  * @author chungwu
  */
-public class DragMoveListener implements DragListener {
+public class DragMoveListener implements DragListener, DragScrollListener {
 
   protected Widget widget;
   protected int originalX;
@@ -38,6 +39,13 @@ public class DragMoveListener implements DragListener {
     setAbsolutePosition(originalX + deltaX, originalY + deltaY);  
   }
   
+  public void dragScrolled(int scrollDeltaX, int scrollDeltaY) {
+    // the mouse deltas are in screen coordinates, so when the page
+    // scrolls under the mouse, the widget has to travel with the page
+    originalX += scrollDeltaX;
+    originalY += scrollDeltaY;
+  }
+  
   /**
    * Sets the absolute position of the widget.  We do it through style
    * so we can set position before the widget is added to the DOM tree. 
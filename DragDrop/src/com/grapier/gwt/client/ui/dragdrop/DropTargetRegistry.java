@@ -0,0 +1,352 @@
+package com.grapier.gwt.client.ui.dragdrop;
+
+import java.util.List;
+import java.util.Map;
+
+import com.google.gwt.user.client.ui.Widget;
+import com.grapier.gwt.client.util.DomUtils;
+
+/**
+ * A collection of places you can drop things onto, shared by any number of
+ * ArrangeableTables and DragDropListeners.  Tables registered here accept
+ * widgets dragged out of each other, and can also drop their widgets onto
+ * plain drop target widgets.
+ *
+ * The registry is divided into regions: each ArrangeableTable is a region,
+ * and so is each list of plain drop targets.  To find what is under the
+ * mouse, we first reject whole regions by their bounding boxes, and only
+ * then look for the cell or widget inside the one region that was hit.  A
+ * table finds its cell by binary searching its row and column boundaries,
+ * so it only measures one cell per row and per column.
+ *
+ * A search can be given a TargetFilter, so that a target that won't take
+ * what is being dragged doesn't hide one that will underneath it.
+ *
+ * Boundaries are measured lazily and cached until invalidate() is called.
+ * Each plain drop target is also mapped to its region, so the handler for
+ * a target that was found can be looked up without searching the lists.
+ *
+ * @author chungwu
+ */
+public class DropTargetRegistry {
+
+  /**
+   * Decides whether a drop target found under the mouse takes what is
+   * being dragged
+   */
+  public interface TargetFilter {
+    public boolean accepts(Widget target);
+  }
+
+  /**
+   * A part of the registry with a bounding box
+   */
+  private static abstract class Region {
+    protected int left;
+    protected int top;
+    protected int width;
+    protected int height;
+    private boolean measured = false;
+
+    /**
+     * Returns the drop target within this region at (absX, absY), which
+     * is already known to be inside the bounding box, that filter accepts;
+     * null if none.  A null filter accepts everything.
+     */
+    protected abstract Widget findDropTargetInside(int absX, int absY, TargetFilter filter);
+
+    /**
+     * Sets left, top, width and height to the bounding box of this region
+     */
+    protected abstract void measureBounds();
+
+    /**
+     * Forgets everything measured about this region
+     */
+    protected void invalidate() {
+      measured = false;
+    }
+
+    public Widget findDropTarget(int absX, int absY, TargetFilter filter) {
+      if (!measured) {
+        measureBounds();
+        measured = true;
+      }
+
+      if (absX > left && absX < left+width && absY > top && absY < top+height) {
+        return findDropTargetInside(absX, absY, filter);
+      }
+      return null;
+    }
+  }
+
+  /**
+   * A region made of the cells of an ArrangeableTable
+   */
+  private static class TableRegion extends Region {
+    private ArrangeableTable table;
+    private CellBounds cells;
+
+    public TableRegion(ArrangeableTable table) {
+      this.table = table;
+    }
+
+    protected void measureBounds() {
+      left = table.getAbsoluteLeft();
+      top = table.getAbsoluteTop();
+      width = table.getOffsetWidth();
+      height = table.getOffsetHeight();
+    }
+
+    protected void invalidate() {
+      super.invalidate();
+      cells = null;
+    }
+
+    protected Widget findDropTargetInside(int absX, int absY, TargetFilter filter) {
+      if (table.getRowCount() == 0 || table.getColumnCount() == 0) {
+        return null;
+      }
+      if (cells == null) {
+        cells = new CellBounds(table);
+      }
+
+      int row = cells.findRow(absY);
+      int col = cells.findColumn(absX);
+      if (row < 0 || col < 0) {
+        return null;
+      }
+      Widget target = table.getDropTarget(row, col);
+      return (filter == null || filter.accepts(target)) ? target : null;
+    }
+  }
+
+  /**
+   * A region made of a list of plain drop target widgets.  The bounding
+   * box is the union of all their boundaries.
+   */
+  private static class WidgetsRegion extends Region {
+    private List widgets;
+    private DragDropListener.WidgetHandler widgetHandler;
+
+    // the widgets as they were when last measured, and the registry's
+    // map from each of them to the region it is in
+    private List indexedWidgets;
+    private Map targetRegions;
+    private int[] lefts;
+    private int[] tops;
+    private int[] widths;
+    private int[] heights;
+
+    public WidgetsRegion(List widgets, DragDropListener.WidgetHandler widgetHandler, Map targetRegions) {
+      this.widgets = widgets;
+      this.widgetHandler = widgetHandler;
+      this.indexedWidgets = DomUtils.newList();
+      this.targetRegions = targetRegions;
+      index();
+    }
+
+    /**
+     * Maps the widgets now in the list to this region, in place of the
+     * ones that were in it before
+     */
+    private void index() {
+      unindex();
+      indexedWidgets.addAll(widgets);
+      for (int i=0; i<indexedWidgets.size(); i++) {
+        targetRegions.put(indexedWidgets.get(i), this);
+      }
+    }
+
+    /**
+     * Takes the widgets mapped to this region out of the map
+     */
+    private void unindex() {
+      for (int i=0; i<indexedWidgets.size(); i++) {
+        Object widget = indexedWidgets.get(i);
+        if (targetRegions.get(widget) == this) {
+          targetRegions.remove(widget);
+        }
+      }
+      indexedWidgets.clear();
+    }
+
+    public Widget findDropTarget(int absX, int absY, TargetFilter filter) {
+      // drop targets may have been added to or removed from the list
+      if (lefts != null && lefts.length != widgets.size()) {
+        invalidate();
+      }
+      return super.findDropTarget(absX, absY, filter);
+    }
+
+    protected Widget findDropTargetInside(int absX, int absY, TargetFilter filter) {
+      for (int i=0; i<lefts.length; i++) {
+        if (absX > lefts[i] && absX < lefts[i] + widths[i]
+            && absY > tops[i] && absY < tops[i] + heights[i]) {
+          Widget target = (Widget) indexedWidgets.get(i);
+          if (filter == null || filter.accepts(target)) {
+            return target;
+          }
+        }
+      }
+      return null;
+    }
+
+    protected void measureBounds() {
+      index();
+      int size = indexedWidgets.size();
+      lefts = new int[size];
+      tops = new int[size];
+      widths = new int[size];
+      heights = new int[size];
+      int minLeft = Integer.MAX_VALUE;
+      int minTop = Integer.MAX_VALUE;
+      int maxRight = Integer.MIN_VALUE;
+      int maxBottom = Integer.MIN_VALUE;
+      for (int i=0; i<size; i++) {
+        Widget widget = (Widget) indexedWidgets.get(i);
+        lefts[i] = widget.getAbsoluteLeft();
+        tops[i] = widget.getAbsoluteTop();
+        widths[i] = widget.getOffsetWidth();
+        heights[i] = widget.getOffsetHeight();
+        minLeft = Math.min(minLeft, lefts[i]);
+        minTop = Math.min(minTop, tops[i]);
+        maxRight = Math.max(maxRight, lefts[i] + widths[i]);
+        maxBottom = Math.max(maxBottom, tops[i] + heights[i]);
+      }
+      left = minLeft;
+      top = minTop;
+      width = maxRight - minLeft;
+      height = maxBottom - minTop;
+    }
+  }
+
+  /**
+   * @gwt.typeArgs <com.grapier.gwt.client.ui.dragdrop.DropTargetRegistry.Region>
+   */
+  private List regions;
+
+  /**
+   * @gwt.typeArgs <com.google.gwt.user.client.ui.Widget,com.grapier.gwt.client.ui.dragdrop.DropTargetRegistry.WidgetsRegion>
+   */
+  private Map targetRegions;
+  private Widget draggedWidget;
+
+  public DropTargetRegistry() {
+    this.regions = DomUtils.newList();
+    this.targetRegions = DomUtils.newMap();
+  }
+
+  /**
+   * Adds a table whose cells can be dropped onto.  You usually want to
+   * call ArrangeableTable.setDropTargetRegistry() instead.
+   */
+  public void addTable(ArrangeableTable table) {
+    if (findTableRegion(table) == null) {
+      regions.add(new TableRegion(table));
+    }
+  }
+
+  public void removeTable(ArrangeableTable table) {
+    regions.remove(findTableRegion(table));
+  }
+  
+  /**
+   * Returns true if the argument table is in this registry
+   */
+  public boolean containsTable(ArrangeableTable table) {
+    return findTableRegion(table) != null;
+  }
+
+  /**
+   * Adds a list of plain widgets that can be dropped onto.  When a widget
+   * is dragged out of an ArrangeableTable over one of them, the argument
+   * WidgetHandler is told about it; use getDraggedWidget() to find out what
+   * is being dropped.  The handler is responsible for putting the dropped
+   * widget somewhere.
+   *
+   * @gwt.typeArgs dropTargets <com.google.gwt.user.client.ui.Widget>
+   */
+  public void addDropTargets(List dropTargets, DragDropListener.WidgetHandler widgetHandler) {
+    regions.add(new WidgetsRegion(dropTargets, widgetHandler, targetRegions));
+  }
+
+  /**
+   * @gwt.typeArgs dropTargets <com.google.gwt.user.client.ui.Widget>
+   */
+  public void removeDropTargets(List dropTargets) {
+    for (int i=0; i<regions.size(); i++) {
+      Object region = regions.get(i);
+      if (region instanceof WidgetsRegion && ((WidgetsRegion) region).widgets == dropTargets) {
+        ((WidgetsRegion) region).unindex();
+        regions.remove(i);
+        return;
+      }
+    }
+  }
+
+  /**
+   * Returns the drop target at (absX, absY), in absolute coordinates;
+   * null if there's none.  A cell of an ArrangeableTable is returned as
+   * that table's DropTarget for the cell.
+   */
+  public Widget findDropTarget(int absX, int absY) {
+    return findDropTarget(absX, absY, null);
+  }
+
+  /**
+   * Returns the first drop target at (absX, absY), in absolute
+   * coordinates, that filter accepts; null if there's none.  Targets that
+   * filter rejects are looked past, to whatever is under them.
+   */
+  public Widget findDropTarget(int absX, int absY, TargetFilter filter) {
+    for (int i=0; i<regions.size(); i++) {
+      Widget target = ((Region) regions.get(i)).findDropTarget(absX, absY, filter);
+      if (target != null) {
+        return target;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Forgets all cached boundaries; they are measured again when next
+   * needed.  Call this when anything registered has moved or changed size.
+   */
+  public void invalidate() {
+    for (int i=0; i<regions.size(); i++) {
+      ((Region) regions.get(i)).invalidate();
+    }
+  }
+
+  /**
+   * Returns the widget currently being dragged out of a table registered
+   * here; null if none is
+   */
+  public Widget getDraggedWidget() {
+    return draggedWidget;
+  }
+
+  void setDraggedWidget(Widget widget) {
+    draggedWidget = widget;
+  }
+
+  /**
+   * Returns the WidgetHandler for a plain drop target; null if the target
+   * is not one
+   */
+  DragDropListener.WidgetHandler getWidgetHandler(Widget target) {
+    WidgetsRegion region = (WidgetsRegion) targetRegions.get(target);
+    return (region == null) ? null : region.widgetHandler;
+  }
+
+  private TableRegion findTableRegion(ArrangeableTable table) {
+    for (int i=0; i<regions.size(); i++) {
+      Object region = regions.get(i);
+      if (region instanceof TableRegion && ((TableRegion) region).table == table) {
+        return (TableRegion) region;
+      }
+    }
+    return null;
+  }
+}
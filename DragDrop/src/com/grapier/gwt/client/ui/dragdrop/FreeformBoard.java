@@ -0,0 +1,603 @@
+package com.grapier.gwt.client.ui.dragdrop;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gwt.user.client.DOM;
+import com.google.gwt.user.client.Event;
+import com.google.gwt.user.client.ui.AbsolutePanel;
+import com.google.gwt.user.client.ui.Widget;
+import com.grapier.gwt.client.ui.dragdrop.DragAwareWidget.DragListener;
+import com.grapier.gwt.client.ui.dragdrop.DragAwareWidget.DragScrollListener;
+import com.grapier.gwt.client.util.DomUtils;
+import com.grapier.gwt.client.util.SpatialHash;
+
+/**
+ * An AbsolutePanel where widgets can be dragged anywhere, but never on top
+ * of each other.  What happens when a dragged widget runs into another is
+ * up to the board's CollisionPolicy: either the dragged widget stops, and
+ * slides along the other's edge, or it pushes the other out of its way,
+ * which may push others in turn.  Pushed widgets go back where they were
+ * if the dragged widget moves away again before it's dropped.
+ *
+ * Where the widgets are is kept in a SpatialHash, so finding what a
+ * dragged widget runs into only looks at the widgets near it; a board of
+ * hundreds of widgets costs about as much per mouse move as a board of a
+ * few.  Widgets are kept within the board's size, once it has one.
+ *
+ * Each widget is dragged by a DragBehavior attached to it, or, if it's a
+ * DragAwareWidget, by that.
+ *
+ * @author chungwu
+ */
+public class FreeformBoard extends AbsolutePanel {
+
+  /**
+   * What a dragged widget does when it runs into another
+   */
+  public static final class CollisionPolicy {
+    // the dragged widget stops against the other, sliding along it if
+    // the mouse moves along its edge
+    public static final CollisionPolicy BLOCK = new CollisionPolicy("block");
+
+    // the other widget is pushed out of the way, pushing others in turn;
+    // if it can't be, the dragged widget stops as with BLOCK
+    public static final CollisionPolicy PUSH = new CollisionPolicy("push");
+
+    private String name;
+
+    private CollisionPolicy(String name) {
+      this.name = name;
+    }
+
+    public String toString() {
+      return name;
+    }
+  }
+
+  /**
+   * Listens for widgets being moved on a FreeformBoard
+   */
+  public interface MoveListener {
+    /**
+     * widget has been dropped at, or pushed to, (left, top)
+     */
+    public void widgetMoved(FreeformBoard sender, Widget widget, int left, int top);
+  }
+
+  // the default size, in pixels, of the cells of the spatial hash
+  private static final int DEFAULT_CELL_SIZE = 100;
+
+  // how many pushes a single mouse move may set off before we give up
+  // and block instead
+  private static final int MAX_PUSHES = 64;
+
+  /**
+   * A widget on the board, where it is, and what drags it
+   */
+  private class Item implements DragListener, DragScrollListener {
+    private Widget widget;
+    private DragBehavior handle;
+    private boolean attachedHandle;
+    private int left;
+    private int top;
+    private int width;
+    private int height;
+
+    // where the widget was when the drag started, for the dragged item
+    // and the items it has pushed
+    private int startLeft;
+    private int startTop;
+
+    // where the mouse deltas are measured from, which moves with the page
+    // when it scrolls during a drag
+    private int originalLeft;
+    private int originalTop;
+
+    public void startDragging(int mouseX, int mouseY) {
+      startDraggingItem(this);
+    }
+
+    public void drag(int mouseX, int mouseY, int deltaX, int deltaY) {
+      if (draggedItem == this) {
+        dragItem(originalLeft + deltaX, originalTop + deltaY);
+      }
+    }
+
+    public void endDragging(int mouseX, int mouseY, int deltaX, int deltaY) {
+      if (draggedItem == this) {
+        dragItem(originalLeft + deltaX, originalTop + deltaY);
+        dropItem();
+      }
+    }
+
+    public void dragScrolled(int scrollDeltaX, int scrollDeltaY) {
+      originalLeft += scrollDeltaX;
+      originalTop += scrollDeltaY;
+    }
+  }
+
+  private SpatialHash hash;
+  private CollisionPolicy collisionPolicy = CollisionPolicy.BLOCK;
+
+  /**
+   * @gwt.typeArgs <com.google.gwt.user.client.ui.Widget,com.grapier.gwt.client.ui.dragdrop.FreeformBoard.Item>
+   */
+  private Map items;
+
+  /**
+   * @gwt.typeArgs <com.grapier.gwt.client.ui.dragdrop.FreeformBoard.MoveListener>
+   */
+  private List moveListeners;
+
+  // the drag in progress, the items it has pushed away from where they
+  // were when it started, and the size of the board then; measured once,
+  // since measuring right after moving widgets makes the browser lay out
+  // the page again
+  private Item draggedItem;
+  private int dragBoardWidth;
+  private int dragBoardHeight;
+
+  /**
+   * @gwt.typeArgs <com.grapier.gwt.client.ui.dragdrop.FreeformBoard.Item>
+   */
+  private List pushedItems;
+
+  public FreeformBoard() {
+    this(DEFAULT_CELL_SIZE);
+  }
+
+  /**
+   * @param cellSize the size, in pixels, of the cells that widgets are
+   *   looked up by; around the size of the typical widget is best
+   */
+  public FreeformBoard(int cellSize) {
+    this.hash = new SpatialHash(cellSize);
+    this.items = DomUtils.newMap();
+    this.moveListeners = DomUtils.newList();
+    this.pushedItems = DomUtils.newList();
+    sinkEvents(Event.ONMOUSEDOWN);
+  }
+
+  /**
+   * Passes mouse downs on to the DragBehaviors attached to the widgets
+   * in here, which the event preview misses while a popup is showing
+   */
+  public void onBrowserEvent(Event event) {
+    super.onBrowserEvent(event);
+    if (DOM.eventGetType(event) == Event.ONMOUSEDOWN) {
+      DragBehavior.pressAttached(event);
+    }
+  }
+
+  public void setCollisionPolicy(CollisionPolicy collisionPolicy) {
+    this.collisionPolicy = collisionPolicy;
+  }
+
+  public CollisionPolicy getCollisionPolicy() {
+    return collisionPolicy;
+  }
+
+  public void addMoveListener(MoveListener listener) {
+    moveListeners.add(listener);
+  }
+
+  public void removeMoveListener(MoveListener listener) {
+    moveListeners.remove(listener);
+  }
+
+  /**
+   * Adds a draggable widget to the board at (left, top), or, if another
+   * widget is in the way, below it.  The widget's size is measured once
+   * it's on the board, or, if the board isn't on the page yet, once the
+   * board is; call updateWidgetSize() if it changes.
+   */
+  public void addWidget(Widget widget, int left, int top) {
+    add(widget, left, top);
+    addItem(widget, left, top, widget.getOffsetWidth(), widget.getOffsetHeight());
+  }
+
+  /**
+   * Adds a draggable widget of (width, height) pixels to the board at
+   * (left, top), or, if another widget is in the way, below it
+   */
+  public void addWidget(Widget widget, int left, int top, int width, int height) {
+    widget.setWidth(width + "px");
+    widget.setHeight(height + "px");
+    add(widget, left, top);
+    addItem(widget, left, top, width, height);
+  }
+
+  /**
+   * Takes a widget off the board; the same as remove()
+   */
+  public boolean removeWidget(Widget widget) {
+    return remove(widget);
+  }
+
+  /**
+   * Takes a widget off the board, and, if it was added with addWidget(),
+   * stops it being dragged and getting in the way of the others
+   */
+  public boolean remove(Widget widget) {
+    Item item = (Item) items.remove(widget);
+    if (item != null) {
+      forgetItem(item);
+    }
+    return super.remove(widget);
+  }
+
+  /**
+   * Takes all the widgets off the board
+   */
+  public void clear() {
+    // the drag goes on, but nothing comes of it
+    draggedItem = null;
+    pushedItems.clear();
+
+    List widgets = DomUtils.newList();
+    widgets.addAll(items.keySet());
+    for (int i=0; i<widgets.size(); i++) {
+      forgetItem((Item) items.remove(widgets.get(i)));
+    }
+    super.clear();
+  }
+
+  /**
+   * Takes an item that's leaving the board out of the hash, and takes
+   * the board's listener off its handle
+   */
+  private void forgetItem(Item item) {
+    if (item == draggedItem) {
+      // the drag goes on, but nothing comes of it
+      restorePushedItems();
+      draggedItem = null;
+    }
+    pushedItems.remove(item);
+    hash.remove(item);
+    item.handle.removeDragListener(item);
+    if (item.attachedHandle) {
+      item.handle.detach();
+    }
+  }
+
+  /**
+   * Measures a widget again, after its size has changed, and pushes it
+   * down until it's clear of the widgets around it
+   */
+  public void updateWidgetSize(Widget widget) {
+    resizeItem((Item) items.get(widget), widget.getOffsetWidth(), widget.getOffsetHeight());
+  }
+
+  /**
+   * Measures the widgets that couldn't be measured when they were added,
+   * because the board wasn't on the page yet.  They're all measured
+   * first, and only then moved clear of each other, so the browser only
+   * lays out the page once.
+   */
+  protected void onLoad() {
+    super.onLoad();
+
+    List unmeasured = DomUtils.newList();
+    for (Iterator iter = iterator(); iter.hasNext(); ) {
+      Item item = (Item) items.get(iter.next());
+      if (item != null && (item.width == 0 || item.height == 0)) {
+        unmeasured.add(item);
+      }
+    }
+
+    int[] sizes = new int[unmeasured.size() * 2];
+    for (int i=0; i<unmeasured.size(); i++) {
+      Widget widget = ((Item) unmeasured.get(i)).widget;
+      sizes[2*i] = widget.getOffsetWidth();
+      sizes[2*i+1] = widget.getOffsetHeight();
+    }
+    for (int i=0; i<unmeasured.size(); i++) {
+      resizeItem((Item) unmeasured.get(i), sizes[2*i], sizes[2*i+1]);
+    }
+  }
+
+  public int getWidgetLeft(Widget widget) {
+    Item item = (Item) items.get(widget);
+    return (item != null) ? item.left : super.getWidgetLeft(widget);
+  }
+
+  public int getWidgetTop(Widget widget) {
+    Item item = (Item) items.get(widget);
+    return (item != null) ? item.top : super.getWidgetTop(widget);
+  }
+
+  /**
+   * Returns the widgets that overlap the rectangle (left, top)+(width,
+   * height)
+   */
+  public List getWidgetsIn(int left, int top, int width, int height) {
+    List found = hash.findOverlapping(left, top, width, height, null);
+    for (int i=0; i<found.size(); i++) {
+      found.set(i, ((Item) found.get(i)).widget);
+    }
+    return found;
+  }
+
+  private void addItem(Widget widget, int left, int top, int width, int height) {
+    Item item = new Item();
+    item.widget = widget;
+    item.width = width;
+    item.height = height;
+    if (widget instanceof DragAwareWidget) {
+      item.handle = ((DragAwareWidget) widget).getDragBehavior();
+    } else {
+      item.handle = DragBehavior.attach(widget);
+      item.attachedHandle = true;
+    }
+    item.handle.addDragListener(item);
+    items.put(widget, item);
+    placeClear(item, left, top);
+  }
+
+  /**
+   * Gives an item a new size, and pushes it down until it's clear of the
+   * items around it
+   */
+  private void resizeItem(Item item, int width, int height) {
+    item.width = width;
+    item.height = height;
+    hash.remove(item);
+    placeClear(item, item.left, item.top);
+  }
+
+  /**
+   * Puts an item at (left, top), or as far below that as it takes to clear
+   * the items in the way
+   */
+  private void placeClear(Item item, int left, int top) {
+    left = Math.max(0, left);
+    top = Math.max(0, top);
+    List overlapping;
+    while (!(overlapping = hash.findOverlapping(left, top, item.width, item.height, item)).isEmpty()) {
+      for (Iterator iter = overlapping.iterator(); iter.hasNext(); ) {
+        Item other = (Item) iter.next();
+        top = Math.max(top, other.top + other.height);
+      }
+    }
+    moveItem(item, left, top);
+  }
+
+  private void startDraggingItem(Item item) {
+    if (draggedItem != null) {
+      dropItem();
+    }
+    draggedItem = item;
+    dragBoardWidth = getOffsetWidth();
+    dragBoardHeight = getOffsetHeight();
+    item.startLeft = item.left;
+    item.startTop = item.top;
+    item.originalLeft = item.left;
+    item.originalTop = item.top;
+  }
+
+  /**
+   * Moves the dragged item as close to (left, top) as the collision
+   * policy lets it
+   */
+  private void dragItem(int left, int top) {
+    Item item = draggedItem;
+    left = constrainLeft(item, left);
+    top = constrainTop(item, top);
+    if (left == item.left && top == item.top) {
+      return;
+    }
+
+    if (collisionPolicy == CollisionPolicy.PUSH) {
+      // try the same moves as BLOCK does, but pushing; if none of them
+      // work, put everything back the way it is now
+      int fromLeft = item.left;
+      int fromTop = item.top;
+      List pushed = DomUtils.newList();
+      pushed.addAll(pushedItems);
+      int[] pushedPositions = new int[pushed.size() * 2];
+      for (int i=0; i<pushed.size(); i++) {
+        pushedPositions[2*i] = ((Item) pushed.get(i)).left;
+        pushedPositions[2*i+1] = ((Item) pushed.get(i)).top;
+      }
+      if (!tryPush(item, left, top) && !tryPush(item, left, fromTop) && !tryPush(item, fromLeft, top)) {
+        moveItem(item, fromLeft, fromTop);
+        for (int i=0; i<pushed.size(); i++) {
+          moveItem((Item) pushed.get(i), pushedPositions[2*i], pushedPositions[2*i+1]);
+        }
+        pushedItems.addAll(pushed);
+      }
+      return;
+    }
+
+    // move no more than the item's own size at a time, so that a fast
+    // mouse can't carry it past another item in between
+    while (item.left != left || item.top != top) {
+      int stepLeft = item.left + clampStep(left - item.left, item.width);
+      int stepTop = item.top + clampStep(top - item.top, item.height);
+      if (hash.isFree(stepLeft, stepTop, item.width, item.height, item)) {
+        moveItem(item, stepLeft, stepTop);
+      } else if (stepLeft != item.left && hash.isFree(stepLeft, item.top, item.width, item.height, item)) {
+        // slide along a vertical edge
+        moveItem(item, stepLeft, item.top);
+      } else if (stepTop != item.top && hash.isFree(item.left, stepTop, item.width, item.height, item)) {
+        // slide along a horizontal edge
+        moveItem(item, item.left, stepTop);
+      } else {
+        moveUntilBlocked(item, stepLeft, stepTop);
+        return;
+      }
+    }
+  }
+
+  /**
+   * Returns delta, cut down to no more than size either way
+   */
+  private static int clampStep(int delta, int size) {
+    size = Math.max(1, size);
+    return Math.max(-size, Math.min(size, delta));
+  }
+
+  /**
+   * Moves the item in a straight line towards (left, top), where it would
+   * run into another item, until it's just short of touching it
+   */
+  private void moveUntilBlocked(Item item, int left, int top) {
+    int fromLeft = item.left;
+    int fromTop = item.top;
+    int distance = Math.max(Math.abs(left - fromLeft), Math.abs(top - fromTop));
+
+    // the item fits free at low pixels along the way, but not at high
+    int low = 0;
+    int high = distance;
+    while (high - low > 1) {
+      int mid = (low + high) / 2;
+      int midLeft = fromLeft + (left - fromLeft) * mid / distance;
+      int midTop = fromTop + (top - fromTop) * mid / distance;
+      if (hash.isFree(midLeft, midTop, item.width, item.height, item)) {
+        low = mid;
+      } else {
+        high = mid;
+      }
+    }
+    moveItem(item, fromLeft + (left - fromLeft) * low / distance,
+        fromTop + (top - fromTop) * low / distance);
+  }
+
+  /**
+   * Moves the dragged item to (left, top), pushing whatever it runs into
+   * out of the way, starting from where everything was at the start of
+   * the drag, so that items it has moved away from spring back.  Returns
+   * false, with everything but the dragged item put back, if it can't.
+   */
+  private boolean tryPush(Item item, int left, int top) {
+    restorePushedItems();
+    if (push(item, left, top)) {
+      return true;
+    }
+    restorePushedItems();
+    return false;
+  }
+
+  /**
+   * Moves item to (left, top), pushing whatever it runs into out of the
+   * way, and returns true; or returns false if it can't, leaving the
+   * pushed items where they were put, for restorePushedItems()
+   */
+  private boolean push(Item item, int left, int top) {
+    moveItem(item, left, top);
+
+    List movers = DomUtils.newList();
+    movers.add(item);
+    int pushes = 0;
+    while (!movers.isEmpty()) {
+      Item mover = (Item) movers.remove(0);
+      List overlapping = hash.findOverlapping(mover.left, mover.top, mover.width, mover.height, mover);
+      for (Iterator iter = overlapping.iterator(); iter.hasNext(); ) {
+        Item other = (Item) iter.next();
+        if (other == draggedItem || ++pushes > MAX_PUSHES) {
+          return false;
+        }
+        if (!pushedItems.contains(other)) {
+          // first pushed since the last restore, so it's where it was
+          // at the start of the drag
+          other.startLeft = other.left;
+          other.startTop = other.top;
+          pushedItems.add(other);
+        }
+        if (!pushAway(mover, other)) {
+          return false;
+        }
+        movers.add(other);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Moves other just clear of pusher, along whichever axis it overlaps
+   * pusher the least, and away from pusher's middle; returns false if
+   * that would take it off the board
+   */
+  private boolean pushAway(Item pusher, Item other) {
+    int overlapX = Math.min(pusher.left + pusher.width, other.left + other.width) - Math.max(pusher.left, other.left);
+    int overlapY = Math.min(pusher.top + pusher.height, other.top + other.height) - Math.max(pusher.top, other.top);
+    boolean pushRight = (2 * pusher.left + pusher.width) <= (2 * other.left + other.width);
+    boolean pushDown = (2 * pusher.top + pusher.height) <= (2 * other.top + other.height);
+    int horizontalLeft = pushRight ? pusher.left + pusher.width : pusher.left - other.width;
+    int verticalTop = pushDown ? pusher.top + pusher.height : pusher.top - other.height;
+
+    boolean horizontalFits = (constrainLeft(other, horizontalLeft) == horizontalLeft);
+    boolean verticalFits = (constrainTop(other, verticalTop) == verticalTop);
+    if (horizontalFits && (overlapX <= overlapY || !verticalFits)) {
+      moveItem(other, horizontalLeft, other.top);
+    } else if (verticalFits) {
+      moveItem(other, other.left, verticalTop);
+    } else {
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Puts every pushed item back where it was at the start of the drag
+   */
+  private void restorePushedItems() {
+    for (int i=0; i<pushedItems.size(); i++) {
+      Item item = (Item) pushedItems.get(i);
+      moveItem(item, item.startLeft, item.startTop);
+    }
+    pushedItems.clear();
+  }
+
+  private void dropItem() {
+    Item item = draggedItem;
+    draggedItem = null;
+
+    if (item.left != item.startLeft || item.top != item.startTop) {
+      fireWidgetMoved(item);
+    }
+    for (int i=0; i<pushedItems.size(); i++) {
+      fireWidgetMoved((Item) pushedItems.get(i));
+    }
+    pushedItems.clear();
+  }
+
+  private void fireWidgetMoved(Item item) {
+    for (int i=0; i<moveListeners.size(); i++) {
+      ((MoveListener) moveListeners.get(i)).widgetMoved(this, item.widget, item.left, item.top);
+    }
+  }
+
+  /**
+   * Moves an item to (left, top), both on the page and in the hash
+   */
+  private void moveItem(Item item, int left, int top) {
+    if (left != item.left || top != item.top || !hash.contains(item)) {
+      item.left = left;
+      item.top = top;
+      setWidgetPosition(item.widget, left, top);
+      hash.put(item, left, top, item.width, item.height);
+    }
+  }
+
+  /**
+   * Returns the nearest left that keeps item on the board while dragging:
+   * not past the left edge, nor, if the board had a width when the drag
+   * started, past the right edge
+   */
+  private int constrainLeft(Item item, int left) {
+    if (dragBoardWidth > 0) {
+      left = Math.min(left, dragBoardWidth - item.width);
+    }
+    return Math.max(0, left);
+  }
+
+  private int constrainTop(Item item, int top) {
+    if (dragBoardHeight > 0) {
+      top = Math.min(top, dragBoardHeight - item.height);
+    }
+    return Math.max(0, top);
+  }
+}
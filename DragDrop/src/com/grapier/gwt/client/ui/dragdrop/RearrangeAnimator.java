@@ -0,0 +1,214 @@
+package com.grapier.gwt.client.ui.dragdrop;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gwt.user.client.Timer;
+import com.google.gwt.user.client.ui.Widget;
+import com.grapier.gwt.client.util.DomUtils;
+
+/**
+ * Animates the widgets of an ArrangeableTable from where they were before
+ * a rearrangement to where they end up, so they don't just jump.
+ *
+ * We use the FLIP technique: begin() measures where every widget is
+ * (First); once the table has been rearranged, end() measures where the
+ * widgets that were moved are now (Last), moves each one that has moved
+ * back to where it was with a CSS transform (Invert), and then lets the
+ * transform transition away to nothing (Play).  Only transforms are
+ * animated, so the browser doesn't have to lay anything out while the
+ * widgets move.  All the measuring is done before any of the writing, so
+ * the page is only laid out once.
+ *
+ * The table tells us about each widget it moves with noteMoving().  The
+ * positions end() measures are kept for the next begin(), so only the
+ * widgets that move, or that haven't been measured yet, are ever
+ * measured.  They are all thrown away when the table has moved or changed
+ * width since, or after invalidate(), as the widgets it didn't move may
+ * have moved with it.  Rows come and go at the bottom of the table, so a
+ * change in its height alone doesn't move anything that was measured.
+ *
+ * Calls to begin() and end() can be nested; only the outermost pair
+ * measures and animates.  At most maxAnimated widgets are animated at
+ * once; beyond that, widgets just jump.
+ *
+ * @author chungwu
+ */
+class RearrangeAnimator {
+  private boolean enabled;
+  private int duration;
+  private int maxAnimated;
+  private int animating;
+  private int depth;
+
+  /**
+   * Where each widget was last measured, as {left, top}
+   * 
+   * @gwt.typeArgs <com.google.gwt.user.client.ui.Widget,int[]>
+   */
+  private Map positions;
+
+  // where the table was, as {left, top, width}, when the
+  // positions were measured, and whether it has been resized since
+  private int[] tableBounds;
+  private boolean stale;
+
+  /**
+   * The widgets moved since the outermost begin()
+   * 
+   * @gwt.typeArgs <com.google.gwt.user.client.ui.Widget>
+   */
+  private List moving;
+
+  public RearrangeAnimator() {
+    this.enabled = false;
+    this.duration = 200;
+    this.maxAnimated = 30;
+  }
+
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+    if (!enabled) {
+      // nothing is noted moving from here on
+      positions = null;
+    }
+  }
+
+  public void setDuration(int millis) {
+    this.duration = millis;
+  }
+
+  public void setMaxAnimated(int maxAnimated) {
+    this.maxAnimated = maxAnimated;
+  }
+
+  /**
+   * Remembers where the argument widgets of the argument table are,
+   * before a rearrangement.  Widgets measured before are only measured
+   * again if the table has moved or changed width.
+   *
+   * @gwt.typeArgs widgets <com.google.gwt.user.client.ui.Widget>
+   */
+  public void begin(Widget table, Collection widgets) {
+    depth++;
+    if (!enabled || depth > 1) {
+      return;
+    }
+
+    int[] bounds = new int[] {table.getAbsoluteLeft(), table.getAbsoluteTop(),
+        table.getOffsetWidth()};
+    if (positions == null || stale || !isSameBounds(bounds, tableBounds)) {
+      positions = DomUtils.newMap();
+    }
+    tableBounds = bounds;
+    stale = false;
+
+    moving = DomUtils.newList();
+    for (Iterator iter = widgets.iterator(); iter.hasNext();) {
+      Widget widget = (Widget) iter.next();
+      if (!positions.containsKey(widget)) {
+        positions.put(widget, measure(widget));
+      }
+    }
+  }
+
+  /**
+   * Forgets where the widgets were measured, from the next begin() on;
+   * for when the table's columns have changed, which may move widgets it
+   * didn't say were moving
+   */
+  public void invalidate() {
+    stale = true;
+  }
+
+  /**
+   * Notes that the table is about to move the argument widget
+   */
+  public void noteMoving(Widget widget) {
+    if (moving != null) {
+      moving.add(widget);
+    }
+  }
+
+  /**
+   * Animates the widgets noted as moving since begin() that have moved
+   */
+  public void end() {
+    depth--;
+    if (depth > 0 || moving == null) {
+      return;
+    }
+
+    // measure everything that has moved first...
+    final List moved = DomUtils.newList();
+    List deltaXs = DomUtils.newList();
+    List deltaYs = DomUtils.newList();
+    for (int i=0; i<moving.size(); i++) {
+      Widget widget = (Widget) moving.get(i);
+      if (!widget.isAttached()) {
+        positions.remove(widget);
+        continue;
+      }
+      int[] last = measure(widget);
+      int[] first = (int[]) positions.put(widget, last);
+      if (first == null || animating + moved.size() >= maxAnimated) {
+        continue;
+      }
+      
+      // a widget noted twice has already been measured, and doesn't move
+      // again here
+      int deltaX = first[0] - last[0];
+      int deltaY = first[1] - last[1];
+      if (deltaX != 0 || deltaY != 0) {
+        moved.add(widget);
+        deltaXs.add(new Integer(deltaX));
+        deltaYs.add(new Integer(deltaY));
+      }
+    }
+    moving = null;
+    if (moved.isEmpty()) {
+      return;
+    }
+
+    // ...then put each one back where it was...
+    for (int i=0; i<moved.size(); i++) {
+      Widget widget = (Widget) moved.get(i);
+      DomUtils.setTransformTransition(widget.getElement(), 0);
+      DomUtils.setTransform(widget.getElement(), 
+          "translate(" + deltaXs.get(i) + "px, " + deltaYs.get(i) + "px)");
+    }
+
+    // ...and once the browser has taken that in, let them slide home
+    ((Widget) moved.get(0)).getOffsetWidth();
+    for (int i=0; i<moved.size(); i++) {
+      Widget widget = (Widget) moved.get(i);
+      DomUtils.setTransformTransition(widget.getElement(), duration);
+      DomUtils.setTransform(widget.getElement(), "");
+    }
+
+    animating += moved.size();
+    new Timer() {
+      public void run() {
+        for (int i=0; i<moved.size(); i++) {
+          DomUtils.setTransformTransition(((Widget) moved.get(i)).getElement(), 0);
+        }
+        animating -= moved.size();
+      }
+    }.schedule(duration);
+  }
+
+  private static boolean isSameBounds(int[] bounds, int[] otherBounds) {
+    for (int i=0; i<bounds.length; i++) {
+      if (bounds[i] != otherBounds[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int[] measure(Widget widget) {
+    return new int[] {widget.getAbsoluteLeft(), widget.getAbsoluteTop()};
+  }
+}
@@ -0,0 +1,84 @@
+package com.grapier.gwt.client.ui.dragdrop;
+
+import com.google.gwt.user.client.ui.Widget;
+import com.grapier.gwt.client.ui.dragdrop.DragAwareWidget.DragListener;
+import com.grapier.gwt.client.ui.dragdrop.DragAwareWidget.DragScrollListener;
+
+/**
+ * A DragListener that moves an absolute-positioned widget in steps of a
+ * grid, by snapping the position another DragMoveListener (say, a
+ * ConstrainedDragMoveListener) would move it to, to the nearest grid
+ * point.  The widget is only moved when the snapped position changes,
+ * so a drag touches the DOM once per grid cell crossed instead of once
+ * per mouse move.
+ *
+ * @author chungwu
+ */
+public class SnapToGridMoveListener implements DragListener, DragScrollListener {
+
+  private DragMoveListener dragMoveListener;
+  private int pitchX;
+  private int pitchY;
+
+  // the snapped position the widget was last moved to
+  private int lastLeft;
+  private int lastTop;
+
+  /**
+   * @param widget absolute-positioned widget to move
+   * @param pitchX the width of a grid cell, in pixels
+   * @param pitchY the height of a grid cell, in pixels
+   */
+  public SnapToGridMoveListener(Widget widget, int pitchX, int pitchY) {
+    this(new DragMoveListener(widget), pitchX, pitchY);
+  }
+
+  /**
+   * @param dragMoveListener the listener that does the moving
+   * @param pitchX the width of a grid cell, in pixels
+   * @param pitchY the height of a grid cell, in pixels
+   */
+  public SnapToGridMoveListener(DragMoveListener dragMoveListener, int pitchX, int pitchY) {
+    this.dragMoveListener = dragMoveListener;
+    this.pitchX = pitchX;
+    this.pitchY = pitchY;
+  }
+
+  public void startDragging(int mouseX, int mouseY) {
+    dragMoveListener.startDragging(mouseX, mouseY);
+    lastLeft = dragMoveListener.originalX;
+    lastTop = dragMoveListener.originalY;
+  }
+
+  public void drag(int mouseX, int mouseY, int deltaX, int deltaY) {
+    int left = snap(dragMoveListener.originalX + deltaX, pitchX);
+    int top = snap(dragMoveListener.originalY + deltaY, pitchY);
+    if (left != lastLeft || top != lastTop) {
+      lastLeft = left;
+      lastTop = top;
+      dragMoveListener.drag(mouseX, mouseY,
+          left - dragMoveListener.originalX, top - dragMoveListener.originalY);
+    }
+  }
+
+  public void endDragging(int mouseX, int mouseY, int deltaX, int deltaY) {
+    int left = snap(dragMoveListener.originalX + deltaX, pitchX);
+    int top = snap(dragMoveListener.originalY + deltaY, pitchY);
+    dragMoveListener.endDragging(mouseX, mouseY,
+        left - dragMoveListener.originalX, top - dragMoveListener.originalY);
+  }
+
+  public void dragScrolled(int scrollDeltaX, int scrollDeltaY) {
+    dragMoveListener.dragScrolled(scrollDeltaX, scrollDeltaY);
+  }
+
+  /**
+   * Returns the multiple of pitch nearest to position
+   */
+  private static int snap(int position, int pitch) {
+    if (pitch <= 1) {
+      return position;
+    }
+    return (int) Math.floor((double) position / pitch + 0.5) * pitch;
+  }
+}
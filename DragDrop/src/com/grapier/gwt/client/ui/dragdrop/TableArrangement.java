@@ -0,0 +1,1123 @@
+package com.grapier.gwt.client.ui.dragdrop;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gwt.user.client.ui.Widget;
+import com.grapier.gwt.client.util.DomUtils;
+import com.grapier.gwt.client.util.OccupancyGrid;
+import com.grapier.gwt.client.util.Position;
+
+/**
+ * Where the widgets of a grid of cells are, and the rules for moving them
+ * around: squeezing widgets out of each other's way, compacting them, and
+ * growing and shrinking the grid.  It doesn't touch the DOM at all; it
+ * tells its Renderer about each change, and the Renderer shows it.
+ * ArrangeableTable renders the arrangement as the cells of a table, and
+ * ArrangeableBoard as absolutely-positioned tiles, with nothing for the
+ * empty cells.
+ *
+ * A widget may span several rows and columns; its Position is always that
+ * of its top-left cell.  Which cells are taken is tracked in an
+ * OccupancyGrid, and which widget covers each cell in an array, so
+ * neither needs to look anything up by Position.  The arrangement also
+ * remembers which columns and rows have changed since it was last
+ * compacted, and compacts only those.
+ *
+ * @author chungwu
+ */
+class TableArrangement {
+
+  /**
+   * Shows an arrangement, and decides what the arrangement itself can't
+   */
+  interface Renderer {
+    /**
+     * The widget, which is at oldPosition, or nowhere if that's null, is
+     * about to be moved or taken out
+     */
+    public void widgetMoving(Widget widget, Position oldPosition);
+
+    /**
+     * The widget has been taken out of position, to be put somewhere else
+     */
+    public void widgetLifted(Widget widget, Position position, int rowSpan, int colSpan);
+
+    /**
+     * The widget, which has been lifted or is new, has been put at position
+     */
+    public void widgetPlaced(Widget widget, Position position, int rowSpan, int colSpan);
+
+    /**
+     * Takes the widget out for good, to make room for another; must call
+     * removeWidget() on the arrangement
+     */
+    public void removeWidget(Widget widget);
+
+    /**
+     * Gives the grid rows rows and cols columns; must call setSize() on
+     * the arrangement
+     */
+    public void resize(int rows, int cols);
+
+    /**
+     * Returns where to squeeze a widget at newPosition to, to make room
+     * for a widget coming from oldPosition
+     */
+    public Position getSqueezedToPosition(Position oldPosition, Position newPosition);
+
+    /**
+     * Returns false if compaction should leave the widget where it is
+     */
+    public boolean isCompactable(Widget widget);
+
+    /**
+     * Takes a lifted widget that doesn't fit within the maximum size, and
+     * was squeezed out of oldPosition, out of the way until the
+     * rearrangement is over; or throws a TableFullException, to reject
+     * the rearrangement.
+     */
+    public void overflow(Widget widget, Position oldPosition);
+  }
+
+  /**
+   * How many rows and columns a widget spans
+   */
+  static class Span {
+    int rows;
+    int cols;
+
+    public Span(int rows, int cols) {
+      this.rows = rows;
+      this.cols = cols;
+    }
+
+    public boolean isSingleCell() {
+      return rows == 1 && cols == 1;
+    }
+  }
+
+  static final Span SINGLE_CELL = new Span(1, 1);
+
+  /**
+   * Thrown when a widget would grow the grid past its maximum size
+   */
+  static class TableFullException extends IndexOutOfBoundsException {
+    public TableFullException(Position position) {
+      super("Position " + position + " is past the maximum size of the table");
+    }
+  }
+
+  /**
+   * Where a widget was, and how many cells it spanned
+   */
+  private static class Placement {
+    private Position position;
+    private Span span;
+
+    public Placement(Position position, Span span) {
+      this.position = position;
+      this.span = span;
+    }
+  }
+
+  /**
+   * The columns, or rows, changed since they were last compacted, in
+   * order, so a compaction visits only those
+   */
+  private static class DirtyIndices {
+    private int[] indices = new int[8];
+    private int size;
+
+    public int size() {
+      return size;
+    }
+
+    public int get(int i) {
+      return indices[i];
+    }
+
+    /**
+     * Adds an index that isn't dirty yet
+     */
+    public void add(int index) {
+      int i = findFirstAtLeast(index);
+      if (size == indices.length) {
+        int[] grown = new int[size * 2];
+        System.arraycopy(indices, 0, grown, 0, size);
+        indices = grown;
+      }
+      System.arraycopy(indices, i, indices, i + 1, size - i);
+      indices[i] = index;
+      size++;
+    }
+
+    /**
+     * Returns where the first index not less than index is; size() if
+     * there's none
+     */
+    public int findFirstAtLeast(int index) {
+      int low = 0;
+      int high = size;
+      while (low < high) {
+        int mid = (low + high) / 2;
+        if (indices[mid] < index) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      return low;
+    }
+
+    /**
+     * Returns true if any index from fromIndex (inclusive) to toIndex
+     * (exclusive) is dirty
+     */
+    public boolean containsAny(int fromIndex, int toIndex) {
+      int i = findFirstAtLeast(fromIndex);
+      return i < size && indices[i] < toIndex;
+    }
+
+    /**
+     * Keeps only the indices whose entry in changes is after since.  If
+     * since is before wasSince, the indices changed in between have to
+     * come back, so they are all looked at again.
+     */
+    public void setChangedSince(int[] changes, int since, int wasSince) {
+      if (since < wasSince) {
+        size = 0;
+        for (int i=0; i<changes.length; i++) {
+          if (changes[i] > since) {
+            add(i);
+          }
+        }
+        return;
+      }
+
+      int kept = 0;
+      for (int i=0; i<size; i++) {
+        if (changes[indices[i]] > since) {
+          indices[kept++] = indices[i];
+        }
+      }
+      size = kept;
+    }
+  }
+
+  private Renderer renderer;
+  private boolean compactVertically;
+  private boolean compactHorizontally;
+  private int rows;
+  private int cols;
+  private int minRows;
+  private int minCols;
+  private int maxRows;
+  private int maxCols;
+  private boolean wrap;
+
+  /**
+   * @gwt.typeArgs <com.google.gwt.user.client.ui.Widget,com.grapier.gwt.client.util.Position>
+   */
+  private Map widgetPositionMap;
+
+  /**
+   * @gwt.typeArgs <com.google.gwt.user.client.ui.Widget,com.grapier.gwt.client.ui.dragdrop.TableArrangement.Span>
+   */
+  private Map widgetSpanMap;
+
+  // the widget covering each cell, by row and then column
+  private Widget[][] owners;
+  private OccupancyGrid occupancy;
+
+  // to compact only what has changed: a count of the changes made to the
+  // cells, the change that last touched each column and each row, and the
+  // count at the start of the last complete vertical and horizontal
+  // compaction.  A column or row touched since then is dirty, and kept
+  // in order in dirtyColumns or dirtyRows.  Resizes are counted too, to
+  // tell whether the cells may have moved.
+  private int cellChanges;
+  private int resizes;
+  private int[] columnChanges;
+  private int[] rowChanges;
+  private int compactedVerticallyAt;
+  private int compactedHorizontallyAt;
+  private DirtyIndices dirtyColumns;
+  private DirtyIndices dirtyRows;
+
+  // how many widgets span each number of rows, to keep track of the most
+  // rows any widget spans
+  private int[] rowSpanCounts;
+  private int maxRowSpan;
+
+  // where each widget moved by a rearrangement that may have to be undone
+  // was, and the size of the grid before it; null when not undoable
+  private Map undoPlacements;
+  private int undoRows;
+  private int undoCols;
+
+  // the widgets the Renderer has taken out of the way as overflowing, and
+  // where each was squeezed out of, to be put back if their cells are
+  // freed again
+
+  /**
+   * @gwt.typeArgs <com.google.gwt.user.client.ui.Widget>
+   */
+  private List overflowedWidgets;
+
+  /**
+   * @gwt.typeArgs <com.google.gwt.user.client.ui.Widget,com.grapier.gwt.client.util.Position>
+   */
+  private Map overflowedPositions;
+
+  /**
+   * @param minRows the grid never shrinks below this many rows
+   * @param minCols the grid never shrinks below this many columns
+   * @param compactVertically if true, there are never empty cells above widgets
+   * @param compactHorizontally if true, there are never empty cells to the left
+   *   of widgets
+   */
+  public TableArrangement(Renderer renderer, int minRows, int minCols, boolean compactVertically, boolean compactHorizontally) {
+    this.renderer = renderer;
+    this.minRows = minRows;
+    this.minCols = minCols;
+    this.compactVertically = compactVertically;
+    this.compactHorizontally = compactHorizontally;
+
+    this.widgetPositionMap = DomUtils.newMap();
+    this.widgetSpanMap = DomUtils.newMap();
+    this.owners = new Widget[0][0];
+    this.occupancy = new OccupancyGrid(0, 0);
+    this.columnChanges = new int[0];
+    this.rowChanges = new int[0];
+    this.dirtyColumns = new DirtyIndices();
+    this.dirtyRows = new DirtyIndices();
+    this.rowSpanCounts = new int[2];
+    this.maxRowSpan = 1;
+    this.overflowedWidgets = DomUtils.newList();
+    this.overflowedPositions = DomUtils.newMap();
+  }
+
+  public int getRowCount() {
+    return rows;
+  }
+
+  public int getColumnCount() {
+    return cols;
+  }
+
+  public boolean compactsVertically() {
+    return compactVertically;
+  }
+
+  public boolean compactsHorizontally() {
+    return compactHorizontally;
+  }
+
+  /**
+   * Sets the most rows and columns the grid may grow to as widgets are
+   * squeezed out of the way; 0 means no limit
+   */
+  public void setMaxSize(int maxRows, int maxCols) {
+    this.maxRows = maxRows;
+    this.maxCols = maxCols;
+  }
+
+  /**
+   * Sets whether a widget squeezed past the maximum size goes to the
+   * first free place within it, instead of overflowing
+   */
+  public void setWrap(boolean wrap) {
+    this.wrap = wrap;
+  }
+
+  /**
+   * Records that the grid now has rows rows and cols columns
+   */
+  public void setSize(int rows, int cols) {
+    Widget[][] grown = new Widget[rows][cols];
+    for (int r=0; r<Math.min(rows, this.rows); r++) {
+      for (int c=0; c<Math.min(cols, this.cols); c++) {
+        grown[r][c] = owners[r][c];
+      }
+    }
+    owners = grown;
+    this.rows = rows;
+    this.cols = cols;
+    occupancy.resize(rows, cols);
+    resizes++;
+  }
+
+  /**
+   * Returns the Position of the argument widget; null if it isn't in
+   * the grid
+   */
+  public Position findWidget(Widget widget) {
+    return (Position) widgetPositionMap.get(widget);
+  }
+
+  /**
+   * Returns the widgets in the grid
+   *
+   * @gwt.typeArgs <com.google.gwt.user.client.ui.Widget>
+   */
+  public Collection getWidgets() {
+    return widgetPositionMap.keySet();
+  }
+
+  /**
+   * Returns the Span of the argument widget
+   */
+  public Span getSpan(Widget widget) {
+    Span span = (Span) widgetSpanMap.get(widget);
+    return (span == null) ? SINGLE_CELL : span;
+  }
+
+  /**
+   * Makes the widget span rowSpan rows and colSpan columns from the next
+   * time it's placed
+   */
+  public void setSpan(Widget widget, int rowSpan, int colSpan) {
+    forgetSpan(widget);
+    if (rowSpan != 1 || colSpan != 1) {
+      widgetSpanMap.put(widget, new Span(rowSpan, colSpan));
+      if (rowSpanCounts.length <= rowSpan) {
+        int[] grown = new int[Math.max(rowSpan + 1, rowSpanCounts.length * 2)];
+        System.arraycopy(rowSpanCounts, 0, grown, 0, rowSpanCounts.length);
+        rowSpanCounts = grown;
+      }
+      rowSpanCounts[rowSpan]++;
+      maxRowSpan = Math.max(maxRowSpan, rowSpan);
+    }
+  }
+
+  /**
+   * Makes the widget span a single cell again, and lowers the most rows
+   * any widget spans if it was the last to span that many
+   */
+  private void forgetSpan(Widget widget) {
+    Span span = (Span) widgetSpanMap.remove(widget);
+    if (span == null) {
+      return;
+    }
+    rowSpanCounts[span.rows]--;
+    while (maxRowSpan > 1 && rowSpanCounts[maxRowSpan] == 0) {
+      maxRowSpan--;
+    }
+  }
+
+  /**
+   * Forgets everything about a widget that has left the grid
+   */
+  public void forgetWidget(Widget widget) {
+    widgetPositionMap.remove(widget);
+    forgetSpan(widget);
+    overflowedWidgets.remove(widget);
+    overflowedPositions.remove(widget);
+  }
+
+  /**
+   * Returns the widget whose span covers the cell at (row, col); null
+   * if the cell is empty or isn't in the grid
+   */
+  public Widget getWidgetCovering(int row, int col) {
+    if (row < 0 || row >= rows || col < 0 || col >= cols) {
+      return null;
+    }
+    return owners[row][col];
+  }
+
+  /**
+   * Returns true if a widget spanning rowSpan rows and colSpan columns at
+   * position would overlap nothing
+   */
+  public boolean isFree(Position position, int rowSpan, int colSpan) {
+    return occupancy.isFree(position.getRow(), position.getCol(), rowSpan, colSpan);
+  }
+
+  /**
+   * Returns the Position of the earliest place, iterating row by row,
+   * column by column, where a widget spanning rowSpan rows and colSpan
+   * columns would fit without overlapping anything.
+   */
+  public Position findFreePosition(int rowSpan, int colSpan) {
+    return occupancy.findFree(rowSpan, colSpan);
+  }
+
+  /**
+   * Returns a count that goes up whenever a cell is filled or emptied, or
+   * the grid is resized; while it stays the same, the cells haven't moved
+   */
+  public int getCellMoves() {
+    return cellChanges + resizes;
+  }
+
+  /**
+   * Returns a count that goes up whenever a cell is filled or emptied; a
+   * compaction pass started at this count can be marked done with
+   * setCompactedVerticallyAt() or setCompactedHorizontallyAt()
+   */
+  public int getCellChanges() {
+    return cellChanges;
+  }
+
+  public void setCompactedVerticallyAt(int cellChanges) {
+    dirtyColumns.setChangedSince(columnChanges, cellChanges, compactedVerticallyAt);
+    compactedVerticallyAt = cellChanges;
+  }
+
+  public void setCompactedHorizontallyAt(int cellChanges) {
+    dirtyRows.setChangedSince(rowChanges, cellChanges, compactedHorizontallyAt);
+    compactedHorizontallyAt = cellChanges;
+  }
+
+  /**
+   * Puts a widget at the specified position, replacing whatever overlaps
+   * it, and grows the grid to fit it if need be
+   */
+  public void setWidget(Widget widget, Position position) {
+    noteMoving(widget, findWidget(widget));
+    liftWidget(widget);
+
+    Span span = getSpan(widget);
+    int row = position.getRow();
+    int col = position.getCol();
+    ensurePositionExists(new Position(row + span.rows - 1, col + span.cols - 1));
+
+    // replace whatever was there
+    List widgets = findWidgetsOverlapping(position, span, DomUtils.newList());
+    for (int i=0; i<widgets.size(); i++) {
+      renderer.removeWidget((Widget) widgets.get(i));
+    }
+
+    renderer.widgetPlaced(widget, position, span.rows, span.cols);
+    widgetPositionMap.put(widget, position);
+    setOccupied(position, span, widget);
+  }
+
+  /**
+   * Takes a widget out of its cells, to be put somewhere else with
+   * setWidget().  Does nothing if the widget isn't in the grid.
+   */
+  public void liftWidget(Widget widget) {
+    Position pos = findWidget(widget);
+    if (pos == null) {
+      return;
+    }
+
+    Span span = getSpan(widget);
+    removeWidget(widget);
+    renderer.widgetLifted(widget, pos, span.rows, span.cols);
+  }
+
+  /**
+   * Takes a widget that the Renderer is removing out of its cells.  Does
+   * nothing if the widget isn't in the grid.
+   */
+  public void removeWidget(Widget widget) {
+    Position pos = findWidget(widget);
+    if (pos == null) {
+      return;
+    }
+
+    noteMoving(widget, pos);
+    widgetPositionMap.remove(widget);
+    setOccupied(pos, getSpan(widget), null);
+  }
+
+  /**
+   * Remembers where a widget that is about to move was, if it's the first
+   * time it moves since beginUndoable(), and tells the Renderer
+   */
+  private void noteMoving(Widget widget, Position oldPosition) {
+    if (undoPlacements != null && !undoPlacements.containsKey(widget)) {
+      undoPlacements.put(widget, new Placement(oldPosition, getSpan(widget)));
+    }
+    renderer.widgetMoving(widget, oldPosition);
+  }
+
+  /**
+   * Starts remembering where the widgets moved from here on were, so
+   * the rearrangement can be undone if it turns out not to fit
+   */
+  public void beginUndoable() {
+    undoPlacements = DomUtils.newMap();
+    undoRows = rows;
+    undoCols = cols;
+  }
+
+  public void endUndoable() {
+    undoPlacements = null;
+  }
+
+  /**
+   * Puts every widget moved since beginUndoable() back where it was, and
+   * the grid back to the size it was
+   */
+  public void undo() {
+    Map placements = undoPlacements;
+    undoPlacements = null;
+
+    // take everything that moved out first, so that nothing is squeezed
+    for (Iterator iter = placements.keySet().iterator(); iter.hasNext(); ) {
+      Widget widget = (Widget) iter.next();
+      Placement placement = (Placement) placements.get(widget);
+      if (placement.position != null && overflowedWidgets.remove(widget)) {
+        // squeezed out since beginUndoable(), so it comes back in
+        overflowedPositions.remove(widget);
+      } else if (placement.position != null) {
+        liftWidget(widget);
+      } else if (findWidget(widget) != null) {
+        renderer.removeWidget(widget);
+        forgetSpan(widget);
+      }
+    }
+
+    if (rows < undoRows) {
+      renderer.resize(undoRows, cols);
+    }
+    if (cols < undoCols) {
+      renderer.resize(rows, undoCols);
+    }
+    for (Iterator iter = placements.keySet().iterator(); iter.hasNext(); ) {
+      Widget widget = (Widget) iter.next();
+      Placement placement = (Placement) placements.get(widget);
+      if (placement.position != null) {
+        setSpan(widget, placement.span.rows, placement.span.cols);
+        setWidget(widget, placement.position);
+      }
+    }
+    if (rows > undoRows) {
+      renderer.resize(undoRows, cols);
+    }
+    if (cols > undoCols) {
+      renderer.resize(rows, undoCols);
+    }
+  }
+
+  /**
+   * Moves a widget into newPosition from oldPosition to newPosition.  If there's
+   * already a widget in newPosition, that widget is pushed away to where
+   * the Renderer says.
+   */
+  public void moveWidget(Widget widget, Position oldPosition, Position newPosition) {
+    moveWidget(widget, oldPosition, newPosition, DomUtils.newList());
+  }
+
+  /**
+   * Moves a widget as above.  movedWidgets are the widgets already moved
+   * in this cascade of squeezes; they will not be pushed away again,
+   * which guarantees that the cascade ends.
+   */
+  private void moveWidget(Widget widget, Position oldPosition, Position newPosition, List movedWidgets) {
+    // the order is important!  First, lift out the widget we want to move
+    liftWidget(widget);
+
+    // next, lift out the exisiting widgets in the way
+    List positions = DomUtils.newList();
+    List widgetsToPushAway = liftWidgetsOverlapping(newPosition, getSpan(widget), positions);
+
+    // now we can go ahead and place the widget into the newPosition
+    setWidget(widget, newPosition);
+    movedWidgets.add(widget);
+
+    for (int i=0; i<widgetsToPushAway.size(); i++) {
+      // if there was an existing widget, then ask where to squeeze it, and
+      // move it there
+      Widget widgetToPushAway = (Widget) widgetsToPushAway.get(i);
+      Position pushedFrom = (Position) positions.get(i);
+      Position squeezedPosition = renderer.getSqueezedToPosition(oldPosition, pushedFrom);
+      squeezedPosition = slideClearOf(widgetToPushAway, pushedFrom, squeezedPosition, movedWidgets);
+      squeezedPosition = fitWithinMaximum(squeezedPosition, getSpan(widgetToPushAway));
+      if (squeezedPosition == null) {
+        overflowWidget(widgetToPushAway, pushedFrom);
+      } else {
+        moveWidget(widgetToPushAway, pushedFrom, squeezedPosition, movedWidgets);
+      }
+    }
+  }
+
+  /**
+   * Returns a position for a widget squeezed from oldPosition towards
+   * newPosition where it doesn't overlap any of movedWidgets: newPosition
+   * itself if possible, or further along the same direction.  If that
+   * would push it off the top or left of the grid, returns the first
+   * place it fits instead.
+   */
+  private Position slideClearOf(Widget widget, Position oldPosition, Position newPosition, List movedWidgets) {
+    Span span = getSpan(widget);
+    int rowStep = sign(newPosition.getRow() - oldPosition.getRow());
+    int colStep = sign(newPosition.getCol() - oldPosition.getCol());
+
+    int row = newPosition.getRow();
+    int col = newPosition.getCol();
+    while (row >= 0 && col >= 0) {
+      if (!overlapsAny(row, col, span, movedWidgets)) {
+        return new Position(row, col);
+      }
+      if (rowStep == 0 && colStep == 0) {
+        break;
+      }
+      row += rowStep;
+      col += colStep;
+    }
+    return findFreePosition(span.rows, span.cols);
+  }
+
+  /**
+   * Returns true if a widget of the argument span at (row, col) would
+   * overlap any of the argument widgets
+   */
+  private boolean overlapsAny(int row, int col, Span span, List widgets) {
+    for (int i=0; i<widgets.size(); i++) {
+      Widget widget = (Widget) widgets.get(i);
+      Position position = findWidget(widget);
+      Span widgetSpan = getSpan(widget);
+      if (row < position.getRow() + widgetSpan.rows && position.getRow() < row + span.rows
+          && col < position.getCol() + widgetSpan.cols && position.getCol() < col + span.cols) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static int sign(int value) {
+    return (value > 0) ? 1 : (value < 0) ? -1 : 0;
+  }
+
+  /**
+   * Puts a widget that has been taken out of newPosition, to make room
+   * for a widget coming from oldPosition, where the Renderer says if it
+   * fits there, or else into the first place it fits.  Unlike
+   * moveWidget(), this never pushes anything else away.
+   */
+  public void placeSqueezedWidget(Widget widget, Position oldPosition, Position newPosition) {
+    Span span = getSpan(widget);
+    Position squeezedPosition = renderer.getSqueezedToPosition(oldPosition, newPosition);
+    if (!occupancy.isFree(squeezedPosition.getRow(), squeezedPosition.getCol(), span.rows, span.cols)) {
+      squeezedPosition = findFreePosition(span.rows, span.cols);
+    }
+    squeezedPosition = fitWithinMaximum(squeezedPosition, span);
+    if (squeezedPosition == null) {
+      overflowWidget(widget, newPosition);
+    } else {
+      setWidget(widget, squeezedPosition);
+    }
+  }
+
+  /**
+   * Lifts out every widget that overlaps a widget of the argument span at
+   * position, to be placed somewhere else.  Returns the lifted widgets,
+   * and adds the Position each was lifted from to positions.
+   *
+   * @gwt.typeArgs <com.google.gwt.user.client.ui.Widget>
+   * @gwt.typeArgs positions <com.grapier.gwt.client.util.Position>
+   */
+  public List liftWidgetsOverlapping(Position position, Span span, List positions) {
+    List widgets = findWidgetsOverlapping(position, span, positions);
+    for (int i=0; i<widgets.size(); i++) {
+      liftWidget((Widget) widgets.get(i));
+    }
+    return widgets;
+  }
+
+  /**
+   * Returns every widget that overlaps a widget of the argument span at
+   * position, and adds the Position of each to positions
+   *
+   * @gwt.typeArgs <com.google.gwt.user.client.ui.Widget>
+   * @gwt.typeArgs positions <com.grapier.gwt.client.util.Position>
+   */
+  private List findWidgetsOverlapping(Position position, Span span, List positions) {
+    List widgets = DomUtils.newList();
+    int row = position.getRow();
+    int col = position.getCol();
+    if (occupancy.isFree(row, col, span.rows, span.cols)) {
+      return widgets;
+    }
+
+    int lastRow = Math.min(rows, row + span.rows);
+    int lastCol = Math.min(cols, col + span.cols);
+    for (int r=row; r<lastRow; r++) {
+      for (int c=col; c<lastCol; c++) {
+        Widget widget = owners[r][c];
+        if (widget != null && !widgets.contains(widget)) {
+          widgets.add(widget);
+          positions.add(findWidget(widget));
+        }
+      }
+    }
+
+    return widgets;
+  }
+
+  /**
+   * Returns position if a widget of the argument span fits there without
+   * growing the grid past its maximum size.  If not, returns the first
+   * free place within the maximum size when wrapping, if there is one, or
+   * else null.
+   */
+  private Position fitWithinMaximum(Position position, Span span) {
+    if (fitsWithinMaximum(position, span)) {
+      return position;
+    }
+    if (!wrap) {
+      return null;
+    }
+    return findFreePositionWithinMaximum(span);
+  }
+
+  /**
+   * Returns the first free place for a widget of the argument span in the
+   * rows there are, or else in a new row or a new column; null if there's
+   * none within the maximum size of the grid
+   */
+  public Position findFreePositionWithinMaximum(Span span) {
+    Position free = findFreePosition(span.rows, span.cols);
+    if (fitsWithinMaximum(free, span)) {
+      return free;
+    }
+    free = new Position(0, cols);
+    return fitsWithinMaximum(free, span) ? free : null;
+  }
+
+  /**
+   * Returns true if a widget of the argument span at position would fit
+   * without growing the grid past its maximum size
+   */
+  public boolean fitsWithinMaximum(Position position, Span span) {
+    int rowLimit = (maxRows > 0) ? Math.max(maxRows, rows) : Integer.MAX_VALUE;
+    int colLimit = (maxCols > 0) ? Math.max(maxCols, cols) : Integer.MAX_VALUE;
+    return position.getRow() + span.rows <= rowLimit
+        && position.getCol() + span.cols <= colLimit;
+  }
+
+  /**
+   * Resizes the grid so that newPosition fits within its boundaries
+   */
+  private void ensurePositionExists(Position newPosition) {
+    if (!fitsWithinMaximum(newPosition, SINGLE_CELL)) {
+      throw new TableFullException(newPosition);
+    }
+
+    if (newPosition.getRow() >= rows) {
+      renderer.resize(newPosition.getRow() + 1, cols);
+    }
+
+    if (newPosition.getCol() >= cols) {
+      renderer.resize(rows, newPosition.getCol() + 1);
+    }
+  }
+
+  /**
+   * Has the Renderer take a widget lifted out of oldPosition, that doesn't
+   * fit within the maximum size, out of the way, and remembers it so it
+   * can be put back if its cells are freed again
+   */
+  private void overflowWidget(Widget widget, Position oldPosition) {
+    renderer.overflow(widget, oldPosition);
+    overflowedWidgets.add(widget);
+    if (!overflowedPositions.containsKey(widget)) {
+      overflowedPositions.put(widget, oldPosition);
+    }
+  }
+
+  public boolean hasOverflowedWidgets() {
+    return !overflowedWidgets.isEmpty();
+  }
+
+  /**
+   * Puts every overflowed widget whose cells are free again back where it
+   * was squeezed out of, and compacts the grid afterwards if compact is
+   * true
+   */
+  public void restoreOverflowedWidgets(boolean compact) {
+    boolean restored = false;
+    for (int i=overflowedWidgets.size()-1; i>=0; i--) {
+      Widget widget = (Widget) overflowedWidgets.get(i);
+      Position position = (Position) overflowedPositions.get(widget);
+      Span span = getSpan(widget);
+      if (fitsWithinMaximum(position, span)
+          && occupancy.isFree(position.getRow(), position.getCol(), span.rows, span.cols)) {
+        overflowedWidgets.remove(i);
+        overflowedPositions.remove(widget);
+        setWidget(widget, position);
+        restored = true;
+      }
+    }
+    if (restored && compact) {
+      compactWidgets();
+    }
+  }
+
+  /**
+   * Returns the widgets still overflowed, and forgets that they were
+   *
+   * @gwt.typeArgs <com.google.gwt.user.client.ui.Widget>
+   */
+  public List takeOverflowedWidgets() {
+    List widgets = DomUtils.newList();
+    widgets.addAll(overflowedWidgets);
+    overflowedWidgets.clear();
+    overflowedPositions.clear();
+    return widgets;
+  }
+
+  /**
+   * Compacts the grid, vertically or horizontally, if compactVertically or
+   * compactHorizontally were set to true.  Only the dirty columns are
+   * compacted vertically, and only the dirty rows horizontally; nothing
+   * else can have moved since the last compaction.
+   */
+  public void compactWidgets() {
+    if (compactVertically) {
+      int start = cellChanges;
+      compactVertically(0, rows);
+      setCompactedVerticallyAt(start);
+    }
+
+    if (compactHorizontally) {
+      int start = cellChanges;
+      compactHorizontally(0, rows);
+      setCompactedHorizontallyAt(start);
+    }
+  }
+
+  /**
+   * Marks the cells under a widget at position as covered by owner, or
+   * free if owner is null, which makes their columns and rows dirty
+   */
+  private void setOccupied(Position position, Span span, Widget owner) {
+    int row = position.getRow();
+    int col = position.getCol();
+    occupancy.set(row, col, span.rows, span.cols, owner != null);
+    for (int r=row; r<row+span.rows; r++) {
+      for (int c=col; c<col+span.cols; c++) {
+        owners[r][c] = owner;
+      }
+    }
+    cellChanges++;
+    columnChanges = markChanged(columnChanges, col, span.cols, compactedVerticallyAt, dirtyColumns);
+    rowChanges = markChanged(rowChanges, row, span.rows, compactedHorizontallyAt, dirtyRows);
+  }
+
+  /**
+   * Sets count entries of changes, starting at from, to the current
+   * change, and adds those not changed since to dirty; returns changes,
+   * or a bigger copy if it was too short
+   */
+  private int[] markChanged(int[] changes, int from, int count, int since, DirtyIndices dirty) {
+    if (changes.length < from + count) {
+      int[] grown = new int[Math.max(from + count, changes.length * 2)];
+      for (int i=0; i<changes.length; i++) {
+        grown[i] = changes[i];
+      }
+      changes = grown;
+    }
+    for (int i=from; i<from+count; i++) {
+      if (changes[i] <= since) {
+        dirty.add(i);
+      }
+      changes[i] = cellChanges;
+    }
+    return changes;
+  }
+
+  /**
+   * Returns the widget whose top left cell is at (row, col); null if
+   * there's none, or if the Renderer says compaction leaves it alone
+   */
+  private Widget getCompactableWidget(int row, int col) {
+    Widget widget = owners[row][col];
+    if (widget == null || !renderer.isCompactable(widget)) {
+      return null;
+    }
+    Position position = findWidget(widget);
+    return (position.getRow() == row && position.getCol() == col) ? widget : null;
+  }
+
+  /**
+   * Moves the widgets in rows fromRow (inclusive) to toRow (exclusive)
+   * that overlap a dirty column as far up as they go.  Compacting every
+   * row in order compacts the grid; the rows go in order, rather than
+   * each column from top to bottom, so that a widget spanning several
+   * columns always moves up past widgets that have already moved up.
+   */
+  public void compactVertically(int fromRow, int toRow) {
+    for (int r=fromRow; r<Math.min(toRow, rows); r++) {
+      // only the widgets over a dirty column; the list may grow as they
+      // move, so look up the next column each time
+      int col = 0;
+      for (int i=0; i<dirtyColumns.size(); i=dirtyColumns.findFirstAtLeast(col + 1)) {
+        col = dirtyColumns.get(i);
+        if (col >= cols) {
+          break;
+        }
+
+        Widget widget = owners[r][col];
+        if (widget == null) {
+          continue;
+        }
+        Position position = findWidget(widget);
+        if (position.getRow() != r) {
+          continue;
+        }
+
+        int c = position.getCol();
+        if (renderer.isCompactable(widget)) {
+          Position newPosition = findTopMostEmptyPositionAbove(widget, r, c);
+          if (newPosition != null) {
+            moveWidget(widget, position, newPosition);
+          }
+        }
+        col = c + getSpan(widget).cols - 1;
+      }
+    }
+  }
+
+  /**
+   * Returns the topmost position above (row, column) that the widget
+   * there would fit into; null if there's none
+   */
+  private Position findTopMostEmptyPositionAbove(Widget widget, int row, int column) {
+    Span span = getSpan(widget);
+
+    // the widget's own cells don't get in its way
+    occupancy.set(row, column, span.rows, span.cols, false);
+    Position position = null;
+    for (int r=0; r<row; r++) {
+      if (occupancy.isFree(r, column, span.rows, span.cols)) {
+        position = new Position(r, column);
+        break;
+      }
+    }
+    occupancy.set(row, column, span.rows, span.cols, true);
+    return position;
+  }
+
+  /**
+   * Moves the widgets in rows fromRow (inclusive) to toRow (exclusive)
+   * that overlap a dirty row as far left as they go
+   */
+  public void compactHorizontally(int fromRow, int toRow) {
+    for (int r=fromRow; r<Math.min(toRow, rows); r++) {
+      // skip to the first row whose widgets may reach a dirty row
+      int i = dirtyRows.findFirstAtLeast(r);
+      if (i == dirtyRows.size()) {
+        break;
+      }
+      int firstDirty = dirtyRows.get(i);
+      if (firstDirty >= r + maxRowSpan) {
+        r = firstDirty - maxRowSpan;
+        continue;
+      }
+
+      for (int c=0; c<cols; c++) {
+        Widget widget = getCompactableWidget(r, c);
+        if (widget == null) {
+          continue;
+        }
+
+        Span span = getSpan(widget);
+        if (dirtyRows.containsAny(r, r + span.rows)) {
+          Position newPosition = findLeftMostEmptyPositionToLeftOf(widget, r, c);
+          if (newPosition != null) {
+            moveWidget(widget, new Position(r, c), newPosition);
+          }
+        }
+        c += span.cols - 1;
+      }
+    }
+  }
+
+  /**
+   * Returns the leftmost position to the left of (row, col) that the
+   * widget there would fit into; null if there's none
+   */
+  private Position findLeftMostEmptyPositionToLeftOf(Widget widget, int row, int col) {
+    Span span = getSpan(widget);
+
+    // the widget's own cells don't get in its way
+    occupancy.set(row, col, span.rows, span.cols, false);
+    Position position = null;
+    for (int c=0; c<col; c++) {
+      if (occupancy.isFree(row, c, span.rows, span.cols)) {
+        position = new Position(row, c);
+        break;
+      }
+    }
+    occupancy.set(row, col, span.rows, span.cols, true);
+    return position;
+  }
+
+  /**
+   * Returns true if there's an empty cell in the same column in a
+   * row above position
+   */
+  public boolean isRoomAbove(Position position) {
+    int row = position.getRow();
+    int col = position.getCol();
+    for (int r=row-1; r>=0; r--) {
+      if (isCellEmpty(r, col)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns true if there's an empty cell in the same row in a column
+   * to the left of position
+   */
+  public boolean isRoomToLeft(Position position) {
+    int row = position.getRow();
+    int col = position.getCol();
+    for (int c=col-1; c>=0; c--) {
+      if (isCellEmpty(row, c)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns true if the cell at (row, col) is in the grid, and doesn't
+   * have a widget in it
+   */
+  private boolean isCellEmpty(int row, int col) {
+    if (row < 0 || row >= rows || col < 0 || col >= cols) {
+      return false;
+    }
+    return !occupancy.isOccupied(row, col);
+  }
+
+  /**
+   * Removes the empty rows at the bottom of the grid and the empty columns
+   * to the right of it, down to the minimum size
+   */
+  public void removeEmptyRowsAndColumnsFromFringes() {
+    int rowsToRemove = 0;
+    for (int r=rows-1; r>=minRows; r--) {
+      if (!occupancy.isRowEmpty(r)) {
+        break;
+      }
+      rowsToRemove++;
+    }
+    if (rowsToRemove > 0) {
+      renderer.resize(rows - rowsToRemove, cols);
+    }
+
+    int colsToRemove = 0;
+    for (int c=cols-1; c>=minCols; c--) {
+      if (!occupancy.isColumnEmpty(c)) {
+        break;
+      }
+      colsToRemove++;
+    }
+    if (colsToRemove > 0) {
+      renderer.resize(rows, cols - colsToRemove);
+    }
+  }
+}
@@ -0,0 +1,47 @@
+package com.grapier.gwt.client.ui.dragdrop;
+
+import com.google.gwt.user.client.ui.Widget;
+
+/**
+ * A cheap stand-in for a widget in an ArrangeableTable that hasn't been
+ * created yet.  It is just an empty, draggable div, so the table can lay it
+ * out, compact it, squeeze it and drag it around like any other widget.
+ * The table asks the WidgetFactory for the real widget, and puts it in
+ * place of the placeholder, once the placeholder's cell is visible or
+ * once it starts being dragged.
+ *
+ * Style the placeholder with the "arrangeable-placeholder" style name.
+ *
+ * @author chungwu
+ */
+public class WidgetPlaceholder extends DragAwareWidget {
+
+  /**
+   * Creates the real widget for a placeholder
+   */
+  public interface WidgetFactory {
+    /**
+     * Creates the widget
+     */
+    public Widget createWidget();
+
+    /**
+     * Returns the handle by which the widget returned by createWidget()
+     * can be dragged around; null to drag the widget by itself, without
+     * wrapping it in anything
+     */
+    public DragAwareWidget getHandle(Widget widget);
+  }
+
+  private WidgetFactory factory;
+
+  public WidgetPlaceholder(WidgetFactory factory) {
+    super(null);
+    this.factory = factory;
+    setStyleName("arrangeable-placeholder");
+  }
+
+  public WidgetFactory getFactory() {
+    return factory;
+  }
+}
@@ -6,6 +6,7 @@ import java.util.List;
 import java.util.Map;
 
 import com.google.gwt.user.client.DOM;
+import com.google.gwt.user.client.Element;
 import com.google.gwt.user.client.Window;
 import com.google.gwt.user.client.ui.ClickListener;
 import com.google.gwt.user.client.ui.HTMLTable;
@@ -27,6 +28,91 @@ public class DomUtils {
     return $doc.body.scrollLeft;
   }-*/;
   
+  /**
+   * Scrolls the window by (deltaX, deltaY) pixels
+   */
+  public static native void scrollBy(int deltaX, int deltaY) /*-{
+    $wnd.scrollBy(deltaX, deltaY);
+  }-*/;
+  
+  /**
+   * Keeps a Java object on an element, under name, for getObject() to
+   * find; null takes it off again
+   */
+  public static native void setObject(Element elem, String name, Object value) /*-{
+    elem[name] = value;
+  }-*/;
+  
+  /**
+   * Returns the Java object kept on an element under name; null if
+   * there isn't one
+   */
+  public static native Object getObject(Element elem, String name) /*-{
+    var value = elem[name];
+    return (value == null) ? null : value;
+  }-*/;
+  
+  /**
+   * Sets the CSS transform of an element, along with the prefixed versions
+   * for browsers that don't know the standard one yet
+   */
+  public static native void setTransform(Element elem, String transform) /*-{
+    elem.style.transform = transform;
+    elem.style.WebkitTransform = transform;
+    elem.style.MozTransform = transform;
+    elem.style.OTransform = transform;
+  }-*/;
+  
+  /**
+   * Makes changes to the CSS transform of an element take millis
+   * milliseconds; if millis is 0, makes them take effect right away
+   */
+  public static native void setTransformTransition(Element elem, int millis) /*-{
+    var timing = " " + millis + "ms ease-out";
+    elem.style.transition = (millis > 0) ? "transform" + timing : "";
+    elem.style.WebkitTransition = (millis > 0) ? "-webkit-transform" + timing : "";
+    elem.style.MozTransition = (millis > 0) ? "-moz-transform" + timing : "";
+    elem.style.OTransition = (millis > 0) ? "-o-transform" + timing : "";
+  }-*/;
+  
+  /**
+   * Returns the current time in milliseconds, with a fraction if the 
+   * browser has a high resolution clock
+   */
+  public static native double now() /*-{
+    if ($wnd.performance && $wnd.performance.now) {
+      return $wnd.performance.now();
+    }
+    return new Date().getTime();
+  }-*/;
+  
+  /**
+   * Starts counting the changes made to elem and everything under it, 
+   * and resets the count to 0.  Does nothing in browsers that can't
+   * observe DOM changes.
+   */
+  public static native void countMutations(Element elem) /*-{
+    if (!$wnd.MutationObserver) {
+      return;
+    }
+    if (!elem.__mutationObserver) {
+      elem.__mutationObserver = new $wnd.MutationObserver(function(records) {
+        elem.__mutationCount += records.length;
+      });
+      elem.__mutationObserver.observe(elem, 
+          {childList: true, attributes: true, characterData: true, subtree: true});
+    }
+    elem.__mutationCount = 0;
+  }-*/;
+  
+  /**
+   * Returns the number of changes made to elem since countMutations() was
+   * last called on it; -1 if the browser can't observe DOM changes
+   */
+  public static native int getMutationCount(Element elem) /*-{
+    return elem.__mutationObserver ? elem.__mutationCount : -1;
+  }-*/;
+  
   public static int getOffsetLeft(Widget widget) {
     return DOM.getIntAttribute(widget.getElement(), "offsetLeft");
   }
@@ -0,0 +1,164 @@
+package com.grapier.gwt.client.util;
+
+/**
+ * Keeps track of which cells of a table are occupied, as one bitset per
+ * row.  Asking whether a whole rectangle of cells is free only looks at
+ * the words of each row that the rectangle overlaps, so it costs about
+ * one operation per row per 32 columns, rather than one per cell.
+ *
+ * Cells beyond the bottom or right of the grid are considered free, since
+ * tables can always grow in those directions; cells at negative rows or
+ * columns are never free.
+ *
+ * @author chungwu
+ */
+public class OccupancyGrid {
+  private static final int BITS_PER_WORD = 32;
+
+  private int rowCount;
+  private int colCount;
+  private int[][] rows;
+
+  public OccupancyGrid(int rowCount, int colCount) {
+    this.rows = new int[0][];
+    resize(rowCount, colCount);
+  }
+
+  public int getRowCount() {
+    return rowCount;
+  }
+
+  public int getColumnCount() {
+    return colCount;
+  }
+
+  /**
+   * Resizes the grid.  Cells that are still in the grid keep their
+   * occupancy, and new cells are free.
+   */
+  public void resize(int newRowCount, int newColCount) {
+    int words = wordCount(newColCount);
+    int[][] newRows = new int[newRowCount][];
+    for (int r=0; r<newRowCount; r++) {
+      newRows[r] = new int[words];
+      if (r < rowCount) {
+        int[] oldRow = rows[r];
+        for (int w=0; w<Math.min(words, oldRow.length); w++) {
+          newRows[r][w] = oldRow[w];
+        }
+
+        // clear out the bits of columns that no longer exist
+        if (newColCount < colCount && words > 0) {
+          newRows[r][words-1] &= maskFrom(0, newColCount - (words-1) * BITS_PER_WORD);
+        }
+      }
+    }
+    rows = newRows;
+    rowCount = newRowCount;
+    colCount = newColCount;
+  }
+
+  /**
+   * Returns true if the cell at (row, col) is occupied
+   */
+  public boolean isOccupied(int row, int col) {
+    if (row < 0 || col < 0) {
+      return true;
+    }
+    if (row >= rowCount || col >= colCount) {
+      return false;
+    }
+    return (rows[row][col / BITS_PER_WORD] & (1 << (col % BITS_PER_WORD))) != 0;
+  }
+
+  /**
+   * Marks the rectangle of cells at (row, col)+(height, width) as occupied
+   * or free.  The rectangle must lie within the grid.
+   */
+  public void set(int row, int col, int height, int width, boolean occupied) {
+    for (int r=row; r<row+height; r++) {
+      int[] bits = rows[r];
+      for (int c=col; c<col+width; ) {
+        int word = c / BITS_PER_WORD;
+        int start = c % BITS_PER_WORD;
+        int end = Math.min(BITS_PER_WORD, start + (col + width - c));
+        int mask = maskFrom(start, end);
+        if (occupied) {
+          bits[word] |= mask;
+        } else {
+          bits[word] &= ~mask;
+        }
+        c += end - start;
+      }
+    }
+  }
+
+  /**
+   * Returns true if every cell in the rectangle (row, col)+(height, width)
+   * is free
+   */
+  public boolean isFree(int row, int col, int height, int width) {
+    if (row < 0 || col < 0) {
+      return false;
+    }
+    int lastRow = Math.min(rowCount, row + height);
+    int lastCol = Math.min(colCount, col + width);
+    for (int r=row; r<lastRow; r++) {
+      int[] bits = rows[r];
+      for (int c=col; c<lastCol; ) {
+        int word = c / BITS_PER_WORD;
+        int start = c % BITS_PER_WORD;
+        int end = Math.min(BITS_PER_WORD, start + (lastCol - c));
+        if ((bits[word] & maskFrom(start, end)) != 0) {
+          return false;
+        }
+        c += end - start;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns true if no cell in the row is occupied
+   */
+  public boolean isRowEmpty(int row) {
+    return isFree(row, 0, 1, colCount);
+  }
+
+  /**
+   * Returns true if no cell in the column is occupied
+   */
+  public boolean isColumnEmpty(int col) {
+    return isFree(0, col, rowCount, 1);
+  }
+
+  /**
+   * Returns the earliest position, iterating row by row, column by column,
+   * where a rectangle of (height, width) cells is free and fits within the
+   * columns of the grid; if there is none, returns the start of the row
+   * right below the grid.
+   */
+  public Position findFree(int height, int width) {
+    for (int r=0; r<rowCount; r++) {
+      for (int c=0; c+width<=Math.max(colCount, width); c++) {
+        if (isFree(r, c, height, width)) {
+          return new Position(r, c);
+        }
+      }
+    }
+    return new Position(rowCount, 0);
+  }
+
+  private static int wordCount(int cols) {
+    return (cols + BITS_PER_WORD - 1) / BITS_PER_WORD;
+  }
+
+  /**
+   * Returns a mask with bits start (inclusive) to end (exclusive) set
+   */
+  private static int maskFrom(int start, int end) {
+    int upper = (end >= BITS_PER_WORD) ? -1 : ((1 << end) - 1);
+    int lower = (1 << start) - 1;
+    return upper & ~lower;
+  }
+}
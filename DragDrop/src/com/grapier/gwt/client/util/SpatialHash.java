@@ -0,0 +1,222 @@
+package com.grapier.gwt.client.util;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps track of where rectangles are on a plane, by dropping each into
+ * the buckets of the square cells it overlaps.  Finding the rectangles that
+ * overlap a given one only looks in the buckets of the cells that it
+ * covers, so it costs about as much as there are rectangles nearby,
+ * however many there are altogether.
+ *
+ * Pick a cell size around the size of the typical rectangle; much smaller
+ * and each rectangle sits in many buckets, much bigger and each bucket
+ * holds many rectangles.  Rectangles that only touch at their edges don't
+ * overlap.
+ *
+ * @author chungwu
+ */
+public class SpatialHash {
+
+  /**
+   * Where a rectangle is, and which cells it has been put in
+   */
+  private static class Entry {
+    private Object item;
+    private int left;
+    private int top;
+    private int width;
+    private int height;
+    private int firstCellX;
+    private int firstCellY;
+    private int lastCellX;
+    private int lastCellY;
+
+    // the last query that found this entry, so that an entry in several
+    // of the buckets looked at is only counted once
+    private int lastQuery;
+
+    private boolean overlaps(int left, int top, int width, int height) {
+      return this.left < left + width && left < this.left + this.width
+        && this.top < top + height && top < this.top + this.height;
+    }
+  }
+
+  private int cellSize;
+
+  /**
+   * @gwt.typeArgs <java.lang.Integer,java.util.List<com.grapier.gwt.client.util.SpatialHash.Entry>>
+   */
+  private Map buckets;
+
+  /**
+   * @gwt.typeArgs <java.lang.Object,com.grapier.gwt.client.util.SpatialHash.Entry>
+   */
+  private Map entries;
+  private int queryCount;
+
+  /**
+   * @param cellSize the width and height, in pixels, of each cell
+   */
+  public SpatialHash(int cellSize) {
+    this.cellSize = cellSize;
+    this.buckets = DomUtils.newMap();
+    this.entries = DomUtils.newMap();
+  }
+
+  public int getCellSize() {
+    return cellSize;
+  }
+
+  /**
+   * Puts item at the rectangle (left, top)+(width, height), moving it
+   * there if it was already somewhere else
+   */
+  public void put(Object item, int left, int top, int width, int height) {
+    Entry entry = (Entry) entries.get(item);
+    if (entry == null) {
+      entry = new Entry();
+      entry.item = item;
+      entries.put(item, entry);
+    } else if (getCell(left) == entry.firstCellX && getCell(top) == entry.firstCellY
+        && getCell(left + width - 1) == entry.lastCellX && getCell(top + height - 1) == entry.lastCellY) {
+      // still in the same cells; most moves while dragging are like this
+      entry.left = left;
+      entry.top = top;
+      entry.width = width;
+      entry.height = height;
+      return;
+    } else {
+      removeFromBuckets(entry);
+    }
+
+    entry.left = left;
+    entry.top = top;
+    entry.width = width;
+    entry.height = height;
+    entry.firstCellX = getCell(left);
+    entry.firstCellY = getCell(top);
+    entry.lastCellX = getCell(left + width - 1);
+    entry.lastCellY = getCell(top + height - 1);
+    for (int x=entry.firstCellX; x<=entry.lastCellX; x++) {
+      for (int y=entry.firstCellY; y<=entry.lastCellY; y++) {
+        Integer key = getKey(x, y);
+        List bucket = (List) buckets.get(key);
+        if (bucket == null) {
+          bucket = DomUtils.newList();
+          buckets.put(key, bucket);
+        }
+        bucket.add(entry);
+      }
+    }
+  }
+
+  /**
+   * Takes item out of the hash
+   */
+  public void remove(Object item) {
+    Entry entry = (Entry) entries.remove(item);
+    if (entry != null) {
+      removeFromBuckets(entry);
+    }
+  }
+
+  public boolean contains(Object item) {
+    return entries.containsKey(item);
+  }
+
+  public int size() {
+    return entries.size();
+  }
+
+  /**
+   * Returns the items that overlap the rectangle (left, top)+(width,
+   * height), other than ignored
+   */
+  public List findOverlapping(int left, int top, int width, int height, Object ignored) {
+    List found = DomUtils.newList();
+    if (width <= 0 || height <= 0) {
+      return found;
+    }
+
+    int query = ++queryCount;
+    int lastCellX = getCell(left + width - 1);
+    int lastCellY = getCell(top + height - 1);
+    for (int x=getCell(left); x<=lastCellX; x++) {
+      for (int y=getCell(top); y<=lastCellY; y++) {
+        List bucket = (List) buckets.get(getKey(x, y));
+        if (bucket == null) {
+          continue;
+        }
+        for (int i=0; i<bucket.size(); i++) {
+          Entry entry = (Entry) bucket.get(i);
+          if (entry.lastQuery != query) {
+            entry.lastQuery = query;
+            if (entry.item != ignored && entry.overlaps(left, top, width, height)) {
+              found.add(entry.item);
+            }
+          }
+        }
+      }
+    }
+    return found;
+  }
+
+  /**
+   * Returns true if no item other than ignored overlaps the rectangle
+   * (left, top)+(width, height)
+   */
+  public boolean isFree(int left, int top, int width, int height, Object ignored) {
+    if (width <= 0 || height <= 0) {
+      return true;
+    }
+
+    int lastCellX = getCell(left + width - 1);
+    int lastCellY = getCell(top + height - 1);
+    for (int x=getCell(left); x<=lastCellX; x++) {
+      for (int y=getCell(top); y<=lastCellY; y++) {
+        List bucket = (List) buckets.get(getKey(x, y));
+        if (bucket == null) {
+          continue;
+        }
+        for (int i=0; i<bucket.size(); i++) {
+          Entry entry = (Entry) bucket.get(i);
+          if (entry.item != ignored && entry.overlaps(left, top, width, height)) {
+            return false;
+          }
+        }
+      }
+    }
+    return true;
+  }
+
+  private void removeFromBuckets(Entry entry) {
+    for (int x=entry.firstCellX; x<=entry.lastCellX; x++) {
+      for (int y=entry.firstCellY; y<=entry.lastCellY; y++) {
+        Integer key = getKey(x, y);
+        List bucket = (List) buckets.get(key);
+        bucket.remove(entry);
+        if (bucket.isEmpty()) {
+          buckets.remove(key);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the cell that the coordinate falls in, rounding down for
+   * negative coordinates too
+   */
+  private int getCell(int coordinate) {
+    return (coordinate >= 0) ? coordinate / cellSize : -((cellSize - 1 - coordinate) / cellSize);
+  }
+
+  /**
+   * Returns the bucket key of the cell (x, y).  Cells 65536 apart share
+   * a bucket, which only costs a few extra overlap checks.
+   */
+  private static Integer getKey(int x, int y) {
+    return new Integer(((x & 0xffff) << 16) | (y & 0xffff));
+  }
+}